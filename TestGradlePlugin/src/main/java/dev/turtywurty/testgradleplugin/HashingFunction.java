@@ -4,26 +4,42 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
 
+/**
+ * Hashes files, streams and byte arrays.
+ * <p>
+ * Nothing is read fully into memory: files are streamed through a direct buffer and streams through a heap buffer,
+ * both of which are reused per thread, as is the {@link MessageDigest} of every algorithm. Hashing thousands of files
+ * therefore allocates little more than the resulting hex strings.
+ */
 public enum HashingFunction {
     MD5("MD5", 32),
     SHA1("SHA-1", 40),
     SHA256("SHA-256", 64),
     SHA512("SHA-512", 128);
 
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> HEAP_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private final String algorithm;
     private final String padding;
+    private final ThreadLocal<MessageDigest> digest;
 
     HashingFunction(String algorithm, int length) {
         this.algorithm = algorithm;
         this.padding = String.format(Locale.ROOT, "%0" + length + "d", 0);
+        this.digest = ThreadLocal.withInitial(this::getMessageDigest);
     }
 
     public String getAlgorithm() {
@@ -38,6 +54,9 @@ public enum HashingFunction {
         return "." + this.algorithm.toLowerCase(Locale.ROOT);
     }
 
+    /**
+     * @return a new digest, for callers that need one of their own, e.g. to hash a download while writing it
+     */
     public MessageDigest getMessageDigest() {
         try {
             return MessageDigest.getInstance(this.algorithm);
@@ -46,33 +65,43 @@ public enum HashingFunction {
         }
     }
 
+    private MessageDigest cachedDigest() {
+        MessageDigest digest = this.digest.get();
+        digest.reset();
+        return digest;
+    }
+
     public String hash(Iterable<Path> paths) {
-        MessageDigest digest = getMessageDigest();
+        MessageDigest digest = cachedDigest();
 
         for (Path path : paths) {
             try {
                 if (Files.notExists(path))
                     continue;
 
-                digest.update(Files.readAllBytes(path));
+                update(digest, path);
             } catch (IOException exception) {
                 throw new RuntimeException("Failed to read bytes from " + path + "!", exception);
             }
         }
 
-        return pad(toHexString(digest.digest()));
+        return toHexString(digest.digest());
     }
 
     public String hash(InputStream stream) {
-        MessageDigest digest = getMessageDigest();
+        MessageDigest digest = cachedDigest();
+        byte[] buffer = HEAP_BUFFER.get();
 
         try {
-            digest.update(stream.readAllBytes());
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
         } catch (IOException exception) {
             throw new RuntimeException("Failed to read bytes from stream!", exception);
         }
 
-        return pad(toHexString(digest.digest()));
+        return toHexString(digest.digest());
     }
 
     public String hash(@Nullable String data) {
@@ -80,22 +109,50 @@ public enum HashingFunction {
     }
 
     public String hash(Path path) {
+        MessageDigest digest = cachedDigest();
+
         try {
-            return hash(Files.readAllBytes(path));
+            update(digest, path);
         } catch (IOException exception) {
             throw new RuntimeException("Failed to read bytes from " + path + "!", exception);
         }
+
+        return toHexString(digest.digest());
     }
 
     public String hash(byte[] data) {
-        return pad(toHexString(getMessageDigest().digest(data)));
+        return toHexString(cachedDigest().digest(data));
     }
 
-    private String pad(String hash) {
-        return (this.padding + hash).substring(hash.length());
+    /**
+     * Feeds the contents of a file into a digest, through the reused direct buffer of this thread.
+     *
+     * @param digest the digest to update
+     * @param path   the file to read
+     */
+    public static void update(MessageDigest digest, Path path) throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
     }
 
-    private static String toHexString(byte[] data) {
-        return new BigInteger(1, data).toString(16);
+    /**
+     * @param data the bytes to encode
+     * @return the bytes as lowercase hex, two digits per byte
+     */
+    public static String toHexString(byte[] data) {
+        var hex = new char[data.length * 2];
+        for (int index = 0; index < data.length; index++) {
+            hex[index * 2] = HEX_DIGITS[(data[index] >> 4) & 0xF];
+            hex[index * 2 + 1] = HEX_DIGITS[data[index] & 0xF];
+        }
+
+        return new String(hex);
     }
 }
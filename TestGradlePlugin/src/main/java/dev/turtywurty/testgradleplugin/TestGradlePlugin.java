@@ -2,6 +2,7 @@ package dev.turtywurty.testgradleplugin;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
 import dev.turtywurty.testgradleplugin.tasks.*;
 import org.gradle.api.Plugin;
@@ -20,7 +21,13 @@ public class TestGradlePlugin implements Plugin<Project> {
 
         final TestGradleExtension extension = target.getExtensions().create("testGradle", TestGradleExtension.class);
         final Property<String> minecraftVersion = extension.getMinecraftVersion().convention("1.21.5");
+        extension.getMaxParallelism().convention(Runtime.getRuntime().availableProcessors());
+        extension.getDebugOutputs().convention(false);
+        extension.getMaxConnectionsPerHost().convention(DownloadEngine.DEFAULT_CONNECTIONS_PER_HOST);
+        extension.getMaxConcurrentDownloads().convention(DownloadEngine.DEFAULT_CONNECTIONS_PER_HOST);
+        extension.getManifestTtlMinutes().convention(TestGradleTask.DEFAULT_MANIFEST_TTL_MINUTES);
         final Provider<TestGradleExtension.Side> sideProvider = extension.getSideEnum();
+        final Provider<TestGradleExtension.RemapMode> remapModeProvider = extension.getRemapModeEnum();
 
         System.out.println("Minecraft Version: " + minecraftVersion.get());
         System.out.println("Side: " + sideProvider.get());
@@ -74,11 +81,15 @@ public class TestGradlePlugin implements Plugin<Project> {
         RemapClassesTask remapClassesTask = tasks.create("remapClasses", RemapClassesTask.class);
         remapClassesTask.setGroup("minecraft");
         remapClassesTask.setDescription("Remaps the Minecraft client and server jars.");
-        remapClassesTask.dependsOn(sideProvider.map(side -> switch (side) {
-            case CLIENT -> new Object[]{extractClientTask, downloadClientMappingsTask};
-            case SERVER -> new Object[]{extractServerTask, downloadServerMappingsTask};
-            case BOTH ->
-                    new Object[]{extractClientTask, extractServerTask, downloadClientMappingsTask, downloadServerMappingsTask};
+        remapClassesTask.dependsOn(sideProvider.zip(remapModeProvider, (side, remapMode) -> {
+            // Jar mode reads the downloaded jars directly, the extracted directories are only needed for directory mode
+            boolean jars = remapMode == TestGradleExtension.RemapMode.JAR;
+            return switch (side) {
+                case CLIENT -> new Object[]{jars ? downloadClientTask : extractClientTask, downloadClientMappingsTask};
+                case SERVER -> new Object[]{jars ? downloadServerTask : extractServerTask, downloadServerMappingsTask};
+                case BOTH -> new Object[]{jars ? downloadClientTask : extractClientTask, jars ? downloadServerTask : extractServerTask,
+                        downloadClientMappingsTask, downloadServerMappingsTask};
+            };
         }).getOrElse(new Object[0]));
 
         MergeTask mergeTask = tasks.create("merge", MergeTask.class);
@@ -2,20 +2,29 @@ package dev.turtywurty.testgradleplugin.asset;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.util.*;
 
 public class AssetIndexHash {
-    private final Map<String, AssetObject> assets = new HashMap<>();
+    private final Map<String, AssetObject> assets;
 
     public AssetIndexHash(Map<String, AssetObject> assets) {
-        this.assets.putAll(assets);
+        this(new TreeMap<>(assets));
     }
 
-    public AssetIndexHash() {}
+    public AssetIndexHash() {
+        this(new TreeMap<>());
+    }
+
+    private AssetIndexHash(TreeMap<String, AssetObject> assets) {
+        this.assets = assets;
+    }
 
     public static AssetIndexHash fromJson(JsonObject json) {
-        Map<String, AssetObject> assets = new HashMap<>();
+        TreeMap<String, AssetObject> assets = new TreeMap<>();
 
         JsonObject objects = json.getAsJsonObject("objects");
         for (Map.Entry<String, JsonElement> assetEntry : objects.entrySet()) {
@@ -32,6 +41,52 @@ public class AssetIndexHash {
         return new AssetIndexHash(assets);
     }
 
+    /**
+     * Reads an asset index straight from the stream into records, without building a json tree of its thousands of
+     * entries first. Anything other than the objects is skipped.
+     */
+    public static AssetIndexHash read(JsonReader reader) throws IOException {
+        TreeMap<String, AssetObject> assets = new TreeMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("objects")) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String assetPath = reader.nextName();
+                assets.put(assetPath, AssetObject.read(reader, assetPath));
+            }
+
+            reader.endObject();
+        }
+
+        reader.endObject();
+        return new AssetIndexHash(assets);
+    }
+
+    /**
+     * Writes the assets in the format of the launcher's asset index, in key order.
+     */
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("objects");
+        writer.beginObject();
+        for (Map.Entry<String, AssetObject> entry : this.assets.entrySet()) {
+            writer.name(entry.getKey());
+            entry.getValue().write(writer);
+        }
+
+        writer.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * @return the assets, sorted by key
+     */
     public Map<String, AssetObject> getAssets() {
         return Collections.unmodifiableMap(assets);
     }
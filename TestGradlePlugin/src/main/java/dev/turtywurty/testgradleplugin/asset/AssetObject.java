@@ -1,9 +1,10 @@
 package dev.turtywurty.testgradleplugin.asset;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.IOException;
 
 public record AssetObject(String hash, long size) {
     public static AssetObject fromJson(JsonObject json) {
@@ -13,6 +14,33 @@ public record AssetObject(String hash, long size) {
         return new AssetObject(hash, size);
     }
 
+    public static AssetObject read(JsonReader reader, String assetPath) throws IOException {
+        String hash = null;
+        long size = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "hash" -> hash = reader.nextString();
+                case "size" -> size = reader.nextLong();
+                default -> reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+        if (hash == null || size < 0)
+            throw new RuntimeException("Asset " + assetPath + " is missing its hash or size!");
+
+        return new AssetObject(hash, size);
+    }
+
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("hash").value(this.hash);
+        writer.name("size").value(this.size);
+        writer.endObject();
+    }
+
     public String getPath() {
         return hash.substring(0, 2) + "/" + hash;
     }
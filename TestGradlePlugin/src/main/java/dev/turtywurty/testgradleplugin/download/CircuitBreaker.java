@@ -0,0 +1,133 @@
+package dev.turtywurty.testgradleplugin.download;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops sending requests to a host that keeps failing. After {@link #FAILURE_THRESHOLD} failures in a row the breaker
+ * opens, and every request to the host waits out a cooldown instead of adding to the failures. Once the cooldown is
+ * over a single trial request is let through: if it succeeds the breaker closes again, otherwise it reopens with a
+ * longer cooldown. Each trial gets its own generation number, so a late failure of a request that was sent before the
+ * breaker opened is not mistaken for the trial failing.
+ * <p>
+ * A host whose breaker opened {@link #GIVE_UP_TRIPS} times in a row is treated as down, and requests to it fail
+ * right away rather than waiting, until a later trial request succeeds.
+ * <p>
+ * The breaker uses a lock rather than {@code synchronized}, since its callers are virtual threads that may wait on it.
+ */
+final class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final int GIVE_UP_TRIPS = 5;
+    private static final long BASE_COOLDOWN_MILLIS = 2_000;
+    private static final long MAX_COOLDOWN_MILLIS = 30_000;
+    private static final long TRIAL_TIMEOUT_MILLIS = 60_000;
+    /**
+     * The token of every request that is not a trial.
+     */
+    static final long NO_TRIAL = 0;
+
+    private final String host;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = this.lock.newCondition();
+    private int consecutiveFailures;
+    private int trips;
+    private boolean open;
+    private boolean trialInFlight;
+    private long trialGeneration;
+    private long openUntil;
+    private long trialUntil;
+
+    CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Waits until a request to the host may be sent.
+     *
+     * @return the token to report a failure of the request with, the generation of the trial if it is one or
+     * {@link #NO_TRIAL} otherwise
+     * @throws OpenException if the host is treated as down
+     */
+    long acquire() throws IOException {
+        this.lock.lock();
+        try {
+            while (this.open) {
+                long now = System.currentTimeMillis();
+                // a trial that never reported back, e.g. because its caller was interrupted, is replaced
+                if (now >= this.openUntil && (!this.trialInFlight || now >= this.trialUntil)) {
+                    this.trialInFlight = true;
+                    this.trialUntil = now + TRIAL_TIMEOUT_MILLIS;
+                    return ++this.trialGeneration;
+                }
+
+                if (this.trips >= GIVE_UP_TRIPS)
+                    throw new OpenException("Giving up on " + this.host + " after it failed " + this.trips * FAILURE_THRESHOLD + " times in a row!");
+
+                try {
+                    this.changed.await((this.trialInFlight ? this.trialUntil : this.openUntil) - now, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for " + this.host, exception);
+                }
+            }
+
+            return NO_TRIAL;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void recordSuccess() {
+        this.lock.lock();
+        try {
+            this.consecutiveFailures = 0;
+            if (this.open) {
+                System.out.println("Requests to " + this.host + " are succeeding again, resuming!");
+                this.open = false;
+                this.trialInFlight = false;
+                this.trips = 0;
+                this.changed.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param token the token {@link #acquire()} returned for the failed request
+     */
+    void recordFailure(long token) {
+        this.lock.lock();
+        try {
+            this.consecutiveFailures++;
+            // while open, only the failure of the current trial reopens the breaker
+            boolean trialFailed = this.trialInFlight && token == this.trialGeneration;
+            if (this.open ? trialFailed : this.consecutiveFailures >= FAILURE_THRESHOLD) {
+                this.trips++;
+                long cooldown = Math.min(MAX_COOLDOWN_MILLIS, BASE_COOLDOWN_MILLIS << Math.min(this.trips - 1, 16));
+                System.out.println("Too many failed requests to " + this.host + ", pausing requests to it for " + cooldown + "ms!");
+                this.open = true;
+                this.trialInFlight = false;
+                this.openUntil = System.currentTimeMillis() + cooldown;
+                this.changed.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Thrown instead of sending a request to a host that is treated as down. Retrying it is pointless.
+     */
+    static final class OpenException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,765 @@
+package dev.turtywurty.testgradleplugin.download;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serial;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The one HTTP client every download goes through. It keeps connections open between requests and prefers HTTP/2,
+ * so the thousands of small asset requests are multiplexed over a handful of connections instead of each paying for
+ * their own TCP and TLS handshake.
+ * <p>
+ * Requests block the calling thread, which is meant to be a virtual thread from {@link #newWorkerExecutor(int)}.
+ * The number of requests in flight per host is capped, and every byte received is counted so the overall throughput
+ * can be reported.
+ * <p>
+ * Failed requests are retried with a jittered exponential backoff, so a brief outage costs a few retried requests
+ * rather than a failed build, and a {@link CircuitBreaker} per host pauses all requests to a host that keeps failing
+ * instead of letting every download burn through its retries at once. Responses that will not change on a retry,
+ * such as a 404, fail right away. The request timeout only covers the wait for the response headers, so a body that
+ * stops arriving for {@link #BODY_IDLE_TIMEOUT} is closed by a watchdog, which fails the read like any dropped
+ * connection.
+ * <p>
+ * When a base URL is set, every request is sent to {@code <base URL>/<original host>/<original path>} instead, which
+ * lets a mirror or a local stand-in server serve all of the hosts at once.
+ */
+public final class DownloadEngine {
+    public static final int DEFAULT_CONNECTIONS_PER_HOST = 8;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration BODY_IDLE_TIMEOUT = Duration.ofSeconds(30);
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "download-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 8_000;
+    private static final long SEGMENT_THRESHOLD = 16L << 20;
+    private static final int SEGMENTS = 4;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final Map<Key, DownloadEngine> INSTANCES = new ConcurrentHashMap<>();
+
+    private final HttpClient client;
+    private final @Nullable String baseUrl;
+    private final int maxConnectionsPerHost;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<Path, FileLock> fileLocks = new ConcurrentHashMap<>();
+    private final Set<PermitInputStream> openBodies = ConcurrentHashMap.newKeySet();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private int active;
+    private long activeSince;
+    private long activeNanos;
+
+    private DownloadEngine(@Nullable String baseUrl, int maxConnectionsPerHost) {
+        this.baseUrl = baseUrl == null || baseUrl.isBlank() ? null : baseUrl.replaceAll("/+$", "");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+
+        WATCHDOG.scheduleWithFixedDelay(() -> this.openBodies.forEach(PermitInputStream::closeIfIdle), 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the engine without a base URL and with the default number of connections per host
+     */
+    public static DownloadEngine getDefault() {
+        return shared(null, DEFAULT_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param baseUrl               the URL every request is redirected to, or null to use the original URLs
+     * @param maxConnectionsPerHost the maximum number of requests in flight per host
+     * @return the engine with the given settings, shared by every task of the build
+     */
+    public static DownloadEngine shared(@Nullable String baseUrl, int maxConnectionsPerHost) {
+        return INSTANCES.computeIfAbsent(new Key(baseUrl, maxConnectionsPerHost), key -> new DownloadEngine(key.baseUrl(), key.maxConnectionsPerHost()));
+    }
+
+    /**
+     * @param parallelism the maximum number of downloads running at once
+     * @return an executor that runs every task on a virtual thread, at most the given number at a time
+     */
+    public static ExecutorService newWorkerExecutor(int parallelism) {
+        return Executors.newFixedThreadPool(parallelism, Thread.ofVirtual().name("download-", 0).factory());
+    }
+
+    /**
+     * @param url the original URL
+     * @return the URL the request is actually sent to
+     */
+    public URI resolve(String url) {
+        URI uri = URI.create(url);
+        if (this.baseUrl == null)
+            return uri;
+
+        String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+        return URI.create(this.baseUrl + "/" + uri.getHost() + uri.getRawPath() + query);
+    }
+
+    public String fetchString(String url) {
+        return new String(fetchBytes(url), StandardCharsets.UTF_8);
+    }
+
+    public byte[] fetchBytes(String url) {
+        return fetch(url, InputStream::readAllBytes);
+    }
+
+    /**
+     * Fetches a file and hands its body to the given reader as it arrives, e.g. to parse it without holding all of it
+     * in memory.
+     *
+     * @param url    the URL to fetch
+     * @param reader reads the body, the stream is closed afterwards
+     * @return what the reader returned
+     */
+    public <T> T fetch(String url, BodyReader<T> reader) {
+        try {
+            return withRetries(url, () -> {
+                try (Response response = open(url, Map.of())) {
+                    return reader.read(response.body());
+                }
+            });
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to download " + url + "!", exception);
+        }
+    }
+
+    @FunctionalInterface
+    public interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    /**
+     * Fetches a file only if it changed since the given validators were received.
+     *
+     * @param url          the URL to fetch
+     * @param etag         the {@code ETag} of the copy the caller has, or null
+     * @param lastModified the {@code Last-Modified} of the copy the caller has, or null
+     * @return the new contents and validators, or null if the server answered 304 Not Modified
+     */
+    public @Nullable Fetched fetchIfChanged(String url, @Nullable String etag, @Nullable String lastModified) {
+        Map<String, String> headers = new HashMap<>();
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+
+        try {
+            return withRetries(url, () -> {
+                try (Response response = open(url, headers)) {
+                    if (response.status() == HTTP_NOT_MODIFIED)
+                        return null;
+
+                    return new Fetched(response.body().readAllBytes(), response.headers().firstValue("ETag").orElse(null),
+                            response.headers().firstValue("Last-Modified").orElse(null));
+                }
+            });
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to download " + url + "!", exception);
+        }
+    }
+
+    /**
+     * Downloads a file. The response is streamed to {@code <target>.part} while it is being hashed, and only moved
+     * into place once its size and SHA-1 match, so a failed or corrupted download never replaces a good file and the
+     * result never has to be read back from disk to be verified.
+     * <p>
+     * A connection that drops midway is resumed with a {@code Range} request, both within this call and in a later
+     * build, since the part file is kept. Files of at least {@link #SEGMENT_THRESHOLD} bytes are fetched as
+     * {@link #SEGMENTS} ranges in parallel, each resumable on its own, if the server supports ranges. A download that
+     * fails, or arrives with the wrong size or hash, is retried with a backoff.
+     *
+     * @param url          the URL to download
+     * @param target       the file to download to
+     * @param expectedSize the expected size in bytes, or a negative number to skip the check
+     * @param expectedSha1 the expected SHA-1, or null to skip the check
+     * @return the SHA-1 of the downloaded file
+     */
+    public String download(String url, Path target, long expectedSize, @Nullable String expectedSha1) {
+        Path absoluteTarget = target.toAbsolutePath().normalize();
+        Path partFile = absoluteTarget.resolveSibling(absoluteTarget.getFileName() + ".part");
+        // Two workers may fetch the same file at once, they would write to the same part file. The lock is only kept
+        // while a download of the file is running or waiting, the engine outlives the build
+        FileLock fileLock = this.fileLocks.compute(absoluteTarget, (path, existing) -> {
+            FileLock acquired = existing == null ? new FileLock() : existing;
+            acquired.users++;
+            return acquired;
+        });
+
+        fileLock.lock.lock();
+        try {
+            Files.createDirectories(absoluteTarget.getParent());
+            return withRetries(url, () -> downloadOnce(url, absoluteTarget, partFile, expectedSize, expectedSha1));
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to download " + url + " to " + target + "!", exception);
+        } finally {
+            fileLock.lock.unlock();
+            this.fileLocks.computeIfPresent(absoluteTarget, (path, existing) -> --existing.users == 0 ? null : existing);
+        }
+    }
+
+    private String downloadOnce(String url, Path target, Path partFile, long expectedSize, @Nullable String expectedSha1) throws IOException {
+        String actualHash = null;
+        if (expectedSize >= SEGMENT_THRESHOLD && Files.notExists(partFile)) {
+            actualHash = downloadSegments(url, partFile, expectedSize);
+        }
+
+        if (actualHash == null) {
+            actualHash = downloadResumable(url, partFile, expectedSize);
+        }
+
+        long written = Files.size(partFile);
+        if (expectedSize >= 0 && written != expectedSize) {
+            deleteQuietly(partFile);
+            throw new IOException("Downloaded " + written + " bytes from " + url + " but expected " + expectedSize + "!");
+        }
+
+        if (expectedSha1 != null && !expectedSha1.equalsIgnoreCase(actualHash)) {
+            deleteQuietly(partFile);
+            throw new IOException("SHA-1 mismatch for " + url + ": expected " + expectedSha1 + " but got " + actualHash + "!");
+        }
+
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return actualHash;
+    }
+
+    /**
+     * Downloads the whole file into the part file, continuing from whatever the part file already holds. The part
+     * file is kept if the connection drops, so the next attempt picks up where this one stopped.
+     *
+     * @return the SHA-1 of the part file
+     */
+    private String downloadResumable(String url, Path partFile, long expectedSize) throws IOException {
+        long existing = Files.exists(partFile) ? Files.size(partFile) : 0;
+        if (expectedSize >= 0 && existing > expectedSize) {
+            Files.delete(partFile);
+            existing = 0;
+        }
+
+        MessageDigest digest = HashingFunction.SHA1.getMessageDigest();
+        if (existing > 0) {
+            HashingFunction.update(digest, partFile);
+            if (existing == expectedSize)
+                return HashingFunction.toHexString(digest.digest());
+
+            System.out.println("Resuming download of " + url + " at " + existing + " bytes!");
+        }
+
+        try (Response response = open(url, existing > 0 ? Map.of("Range", "bytes=" + existing + "-") : Map.of())) {
+            if (response.status() == HTTP_RANGE_NOT_SATISFIABLE) {
+                // The part file is not a prefix of the file on the server, the next attempt starts over
+                Files.deleteIfExists(partFile);
+                throw new IOException("Server refused to resume " + url + " at " + existing + " bytes");
+            }
+
+            // A server that ignores the range sends the whole file again
+            boolean append = existing > 0 && response.status() == HTTP_PARTIAL_CONTENT;
+            if (!append) {
+                digest.reset();
+            }
+
+            try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                copy(response.body(), channel, digest);
+            }
+
+            return HashingFunction.toHexString(digest.digest());
+        }
+    }
+
+    /**
+     * Downloads the file as parallel ranges into {@code <part>.<index>} files, then joins them into the part file.
+     *
+     * @return the SHA-1 of the part file, or null if the server does not support ranges
+     */
+    private @Nullable String downloadSegments(String url, Path partFile, long size) throws IOException {
+        List<Path> segmentFiles = new ArrayList<>(SEGMENTS);
+        List<Future<Boolean>> futures = new ArrayList<>(SEGMENTS);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int index = 0; index < SEGMENTS; index++) {
+                long from = size * index / SEGMENTS;
+                long to = size * (index + 1) / SEGMENTS;
+                Path segmentFile = partFile.resolveSibling(partFile.getFileName() + "." + index);
+                segmentFiles.add(segmentFile);
+                futures.add(executor.submit(() -> downloadRange(url, segmentFile, from, to)));
+            }
+        }
+
+        try {
+            for (Future<Boolean> future : futures) {
+                if (!future.get()) {
+                    for (Path segmentFile : segmentFiles) {
+                        Files.deleteIfExists(segmentFile);
+                    }
+
+                    return null;
+                }
+            }
+        } catch (ExecutionException exception) {
+            throw exception.getCause() instanceof IOException ioException ? ioException : new IOException(exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + url, exception);
+        }
+
+        MessageDigest digest = HashingFunction.SHA1.getMessageDigest();
+        try (FileChannel target = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path segmentFile : segmentFiles) {
+                HashingFunction.update(digest, segmentFile);
+                try (FileChannel source = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+                    long position = 0;
+                    long length = source.size();
+                    while (position < length) {
+                        position += source.transferTo(position, length - position, target);
+                    }
+                }
+            }
+        }
+
+        for (Path segmentFile : segmentFiles) {
+            Files.delete(segmentFile);
+        }
+
+        return HashingFunction.toHexString(digest.digest());
+    }
+
+    /**
+     * Downloads the bytes from {@code from} (inclusive) to {@code to} (exclusive) into the segment file, continuing
+     * from whatever it already holds. Segments that completed are skipped when the whole download is retried.
+     *
+     * @return false if the server does not support ranges
+     */
+    private boolean downloadRange(String url, Path segmentFile, long from, long to) throws IOException {
+        long existing = Files.exists(segmentFile) ? Files.size(segmentFile) : 0;
+        if (existing > to - from) {
+            Files.delete(segmentFile);
+            existing = 0;
+        }
+
+        if (existing == to - from)
+            return true;
+
+        try (Response response = open(url, Map.of("Range", "bytes=" + (from + existing) + "-" + (to - 1)))) {
+            if (response.status() != HTTP_PARTIAL_CONTENT)
+                return false;
+
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                copy(response.body(), channel, null);
+            }
+        }
+
+        if (Files.size(segmentFile) != to - from)
+            throw new IOException("Incomplete range " + from + "-" + to + " of " + url);
+
+        return true;
+    }
+
+    /**
+     * Runs the attempt until it succeeds, it fails in a way a retry will not fix, or {@link #MAX_ATTEMPTS} attempts
+     * failed. Between attempts it waits for an exponentially growing, jittered delay, so the workers that failed
+     * together do not all retry at the same moment.
+     */
+    private <T> T withRetries(String url, Attempt<T> attempt) throws IOException {
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            try {
+                return attempt.run();
+            } catch (IOException exception) {
+                if (attemptNumber >= MAX_ATTEMPTS || !isRetryable(exception))
+                    throw exception;
+
+                long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attemptNumber - 1));
+                long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+                if (exception instanceof HttpStatusException statusException) {
+                    delay = Math.max(delay, Math.min(statusException.getRetryAfterMillis(), MAX_BACKOFF_MILLIS));
+                }
+
+                System.err.println("Request to " + url + " failed (attempt " + attemptNumber + " of " + MAX_ATTEMPTS
+                        + "), retrying in " + delay + "ms: " + exception);
+                this.retries.increment();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to retry " + url, interruptedException);
+                }
+            }
+        }
+    }
+
+    private static boolean isRetryable(IOException exception) {
+        if (Thread.currentThread().isInterrupted() || exception instanceof CircuitBreaker.OpenException)
+            return false;
+
+        return !(exception instanceof HttpStatusException statusException) || statusException.isRetryable();
+    }
+
+    @FunctionalInterface
+    private interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    private static void copy(InputStream stream, FileChannel channel, @Nullable MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            if (digest != null) {
+                digest.update(buffer, 0, read);
+            }
+
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+        }
+    }
+
+    /**
+     * Sends a GET request. Any status other than 2xx, 304 (for a conditional request) or 416 (for a range past the
+     * end) is an error. The host permit is held until the response is closed.
+     * <p>
+     * Connection failures, dropped bodies and server errors count against the circuit breaker of the host, any other
+     * response shows that the host is up. The breaker is keyed by the host of the original URL, so with a base URL
+     * every host it mirrors still fails on its own, while the connection permits are for the server actually used.
+     *
+     * @param headers extra request headers, e.g. {@code Range}
+     */
+    private Response open(String url, Map<String, String> headers) throws IOException {
+        URI uri = resolve(url);
+        String host = uri.getAuthority();
+        CircuitBreaker breaker = this.breakers.computeIfAbsent(URI.create(url).getAuthority(), CircuitBreaker::new);
+        long token = breaker.acquire();
+
+        Semaphore permits = this.hostPermits.computeIfAbsent(host, key -> new Semaphore(this.maxConnectionsPerHost, true));
+        try {
+            permits.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to download " + uri, exception);
+        }
+
+        begin();
+        try {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET();
+            headers.forEach(request::header);
+
+            HttpResponse<InputStream> response;
+            try {
+                response = this.client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException exception) {
+                breaker.recordFailure(token);
+                throw exception;
+            }
+
+            this.requests.increment();
+            if (response.statusCode() / 100 != 2 && response.statusCode() != HTTP_NOT_MODIFIED
+                    && response.statusCode() != HTTP_RANGE_NOT_SATISFIABLE) {
+                response.body().close();
+                var exception = new HttpStatusException(uri, response.statusCode(), retryAfterMillis(response.headers()));
+                if (exception.isRetryable()) {
+                    breaker.recordFailure(token);
+                } else {
+                    breaker.recordSuccess();
+                }
+
+                throw exception;
+            }
+
+            breaker.recordSuccess();
+            return new Response(response.statusCode(), response.headers(), new PermitInputStream(uri, response.body(), permits, breaker, token));
+        } catch (IOException | RuntimeException exception) {
+            end();
+            permits.release();
+            throw exception;
+        } catch (InterruptedException exception) {
+            end();
+            permits.release();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + uri, exception);
+        }
+    }
+
+    /**
+     * @return the delay a {@code Retry-After} header given in seconds asks for, or -1 if there is none
+     */
+    private static long retryAfterMillis(HttpHeaders headers) {
+        try {
+            return headers.firstValue("Retry-After").map(value -> Long.parseLong(value.trim()) * 1000).orElse(-1L);
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    private synchronized void begin() {
+        if (this.active++ == 0) {
+            this.activeSince = System.nanoTime();
+        }
+    }
+
+    private synchronized void end() {
+        if (--this.active == 0) {
+            this.activeNanos += System.nanoTime() - this.activeSince;
+        }
+    }
+
+    public long getBytesDownloaded() {
+        return this.bytes.sum();
+    }
+
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    /**
+     * @return the bytes received per second, counting only the time at least one request was in flight
+     */
+    public long getBytesPerSecond() {
+        return snapshot().bytesPerSecond();
+    }
+
+    /**
+     * The engine is shared by every task of every build in the daemon, so a task takes a snapshot before it starts and
+     * reports {@link Stats#since(Stats)} that snapshot.
+     *
+     * @return the counters so far
+     */
+    public synchronized Stats snapshot() {
+        long nanos = this.activeNanos + (this.active > 0 ? System.nanoTime() - this.activeSince : 0);
+        return new Stats(this.requests.sum(), this.retries.sum(), this.bytes.sum(), nanos);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * A lock on one target file, with the number of downloads holding or waiting for it. The count is only changed
+     * inside the map's compute calls, which are atomic per file.
+     */
+    private static final class FileLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+    }
+
+    private record Key(@Nullable String baseUrl, int maxConnectionsPerHost) {
+    }
+
+    /**
+     * @param body         the contents
+     * @param etag         the {@code ETag} header, if the server sent one
+     * @param lastModified the {@code Last-Modified} header, if the server sent one
+     */
+    /**
+     * @param activeNanos the time at least one request was in flight
+     */
+    public record Stats(long requests, long retries, long bytes, long activeNanos) {
+        /**
+         * @return what was downloaded between the earlier snapshot and this one
+         */
+        public Stats since(Stats start) {
+            return new Stats(this.requests - start.requests, this.retries - start.retries, this.bytes - start.bytes,
+                    this.activeNanos - start.activeNanos);
+        }
+
+        public long bytesPerSecond() {
+            return this.activeNanos == 0 ? 0 : this.bytes * 1_000_000_000L / this.activeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d requests (%d retried), %.2f MB at %.2f MB/s", this.requests, this.retries,
+                    this.bytes / 1_048_576.0, bytesPerSecond() / 1_048_576.0);
+        }
+    }
+
+    public record Fetched(byte[] body, @Nullable String etag, @Nullable String lastModified) {
+    }
+
+    /**
+     * Thrown for a response with an error status. Only timeouts, rate limiting and server errors are worth retrying.
+     */
+    public static final class HttpStatusException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final long retryAfterMillis;
+
+        public HttpStatusException(URI uri, int status, long retryAfterMillis) {
+            super("HTTP " + status + " from " + uri);
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public boolean isRetryable() {
+            return this.status == 408 || this.status == 429 || this.status >= 500;
+        }
+
+        public int getStatus() {
+            return this.status;
+        }
+
+        public long getRetryAfterMillis() {
+            return this.retryAfterMillis;
+        }
+    }
+
+    private record Response(int status, HttpHeaders headers, InputStream body) implements AutoCloseable {
+        @Override
+        public void close() throws IOException {
+            this.body.close();
+        }
+    }
+
+    private final class PermitInputStream extends InputStream {
+        private final URI uri;
+        private final InputStream delegate;
+        private final Semaphore permits;
+        private final CircuitBreaker breaker;
+        private final long token;
+        private volatile long lastProgress = System.nanoTime();
+        private volatile boolean timedOut;
+        private boolean closed;
+
+        private PermitInputStream(URI uri, InputStream delegate, Semaphore permits, CircuitBreaker breaker, long token) {
+            this.uri = uri;
+            this.delegate = delegate;
+            this.permits = permits;
+            this.breaker = breaker;
+            this.token = token;
+            openBodies.add(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read;
+            try {
+                read = this.delegate.read();
+            } catch (IOException exception) {
+                throw failed(exception);
+            }
+
+            this.lastProgress = System.nanoTime();
+            if (read != -1) {
+                bytes.increment();
+            }
+
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read;
+            try {
+                read = this.delegate.read(buffer, offset, length);
+            } catch (IOException exception) {
+                throw failed(exception);
+            }
+
+            this.lastProgress = System.nanoTime();
+            if (read > 0) {
+                bytes.add(read);
+            }
+
+            return read;
+        }
+
+        private IOException failed(IOException exception) {
+            this.breaker.recordFailure(this.token);
+            if (this.timedOut)
+                return new IOException("No data received from " + this.uri + " for " + BODY_IDLE_TIMEOUT.toSeconds() + "s!", exception);
+
+            return exception;
+        }
+
+        /**
+         * Called by the watchdog. Closing the body makes a read that is blocked on it throw.
+         */
+        private void closeIfIdle() {
+            if (System.nanoTime() - this.lastProgress < BODY_IDLE_TIMEOUT.toNanos())
+                return;
+
+            this.timedOut = true;
+            openBodies.remove(this);
+            try {
+                this.delegate.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed)
+                return;
+
+            this.closed = true;
+            openBodies.remove(this);
+            try {
+                this.delegate.close();
+            } finally {
+                end();
+                this.permits.release();
+            }
+        }
+    }
+}
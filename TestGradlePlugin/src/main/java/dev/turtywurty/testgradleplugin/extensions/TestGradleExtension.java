@@ -18,9 +18,86 @@ public abstract class TestGradleExtension {
         }).orElse(Side.CLIENT);
     }
 
+    /**
+     * Either "jar" (the default), which remaps the downloaded jars straight into jars, or "directory", which works on
+     * the extracted class trees and keeps them around for debugging.
+     */
+    public abstract Property<String> getRemapMode();
+
+    public Provider<RemapMode> getRemapModeEnum() {
+        return getRemapMode().map(str -> switch (str.toLowerCase()) {
+            case "directory", "dir" -> RemapMode.DIRECTORY;
+            default -> RemapMode.JAR;
+        }).orElse(RemapMode.JAR);
+    }
+
+    /**
+     * Whether jar mode also writes the remapped client, server and joined classes to the {@code remapped_client},
+     * {@code remapped_server} and {@code remapped_joined} directories, for debugging. Defaults to false.
+     */
+    public abstract Property<Boolean> getDebugOutputs();
+
+    /**
+     * The maximum number of threads used for CPU bound work such as remapping. Defaults to the number of available
+     * processors.
+     */
+    public abstract Property<Integer> getMaxParallelism();
+
+    /**
+     * The maximum number of requests sent to the same host at once. Defaults to 8.
+     */
+    public abstract Property<Integer> getMaxConnectionsPerHost();
+
+    /**
+     * The maximum number of libraries verified, copied or downloaded at once. Defaults to 8.
+     */
+    public abstract Property<Integer> getMaxConcurrentDownloads();
+
+    /**
+     * How many minutes the version manifest is trusted before it is revalidated with the server. Defaults to 30, zero
+     * revalidates it on every build.
+     */
+    public abstract Property<Integer> getManifestTtlMinutes();
+
+    /**
+     * If set, every download is fetched from {@code <base url>/<original host>/<original path>} instead, e.g. from a
+     * mirror or from a local server in tests.
+     */
+    public abstract Property<String> getDownloadBaseUrl();
+
+    /**
+     * How assets and libraries found in the launcher directory are imported: "hardlink" (the default), which shares
+     * the files with the launcher, "reflink", which clones them on copy-on-write file systems, or "copy". Libraries are
+     * never hard linked, since the launcher may rewrite them in place, they are cloned instead where "hardlink" is set.
+     * <p>
+     * Java cannot clone files, so "reflink" runs {@code cp} once for every file imported into the store, which costs a
+     * few milliseconds each the first time the launcher files are imported. Once a clone fails because the file
+     * system does not support them, the remaining files are copied without trying.
+     */
+    public abstract Property<String> getImportStrategy();
+
+    public Provider<ImportStrategy> getImportStrategyEnum() {
+        return getImportStrategy().map(str -> switch (str.toLowerCase()) {
+            case "reflink", "clone" -> ImportStrategy.REFLINK;
+            case "copy" -> ImportStrategy.COPY;
+            default -> ImportStrategy.HARDLINK;
+        }).orElse(ImportStrategy.HARDLINK);
+    }
+
     public enum Side {
         CLIENT,
         SERVER,
         BOTH
     }
+
+    public enum RemapMode {
+        JAR,
+        DIRECTORY
+    }
+
+    public enum ImportStrategy {
+        HARDLINK,
+        REFLINK,
+        COPY
+    }
 }
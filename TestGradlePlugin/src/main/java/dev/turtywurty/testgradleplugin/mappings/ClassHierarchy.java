@@ -0,0 +1,306 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The supertypes and declared members of every class in a jar, read with a header only ASM pass. The remapper uses it
+ * to resolve members that are referenced through a subclass or an interface rather than through their declaring class.
+ * <p>
+ * Building it needs one pass over the jar, so it is stored in a small binary file keyed by the SHA-1 of the jar:
+ * <pre>
+ * int magic, int version, UTF sha1, int class count, then per class:
+ * UTF name, int access, UTF superName ("" for none), int interface count, UTF[] interfaces,
+ * int method count, (UTF name, UTF descriptor, int access)[], int field count, (UTF name, UTF descriptor, int access)[]
+ * </pre>
+ */
+public final class ClassHierarchy {
+    private static final int MAGIC = 0x54484945; // THIE
+    private static final int VERSION = 1;
+
+    private final Map<String, Node> classes;
+
+    private ClassHierarchy(Map<String, Node> classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * Loads the hierarchy of a jar from the cache file, or builds it and writes the cache file if that is missing or
+     * was built from another jar.
+     *
+     * @param jar       the obfuscated jar
+     * @param sha1      the SHA-1 of the jar
+     * @param cacheFile the binary cache file
+     * @param pool      the pool to read the classes on
+     * @return the hierarchy
+     */
+    public static ClassHierarchy load(Path jar, String sha1, Path cacheFile, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        ClassHierarchy hierarchy = read(cacheFile, sha1);
+        if (hierarchy != null) {
+            System.out.println("Loaded class hierarchy of " + hierarchy.size() + " classes from " + cacheFile.getFileName()
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + "ms!");
+            return hierarchy;
+        }
+
+        hierarchy = build(jar, pool);
+        try {
+            hierarchy.write(cacheFile, sha1);
+        } catch (IOException exception) {
+            System.err.println("Failed to write class hierarchy cache " + cacheFile + ": " + exception);
+        }
+
+        System.out.println("Built class hierarchy of " + hierarchy.size() + " classes from " + jar.getFileName()
+                + " in " + (System.nanoTime() - start) / 1_000_000 + "ms!");
+        return hierarchy;
+    }
+
+    /**
+     * Reads the header and member declarations of every class in the jar in parallel, skipping all code.
+     *
+     * @param jar  the obfuscated jar
+     * @param pool the pool to read the classes on
+     * @return the hierarchy
+     */
+    public static ClassHierarchy build(Path jar, ForkJoinPool pool) {
+        try (var zipFile = new ZipFile(jar.toFile())) {
+            List<? extends ZipEntry> entries = Collections.list(zipFile.entries()).stream()
+                    .filter(entry -> !entry.isDirectory() && entry.getName().endsWith(".class"))
+                    .toList();
+
+            List<Node> nodes = pool.submit(() -> entries.parallelStream().map(entry -> readNode(zipFile, entry)).toList()).get();
+
+            Map<String, Node> classes = new HashMap<>(nodes.size() * 2);
+            for (Node node : nodes) {
+                classes.putIfAbsent(node.name, node);
+            }
+
+            return new ClassHierarchy(classes);
+        } catch (IOException | InterruptedException | ExecutionException exception) {
+            throw new IllegalStateException("Failed to read class hierarchy of " + jar, exception);
+        }
+    }
+
+    private static Node readNode(ZipFile zipFile, ZipEntry entry) {
+        byte[] bytes;
+        try (InputStream stream = zipFile.getInputStream(entry)) {
+            bytes = stream.readAllBytes();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read " + entry.getName(), exception);
+        }
+
+        var collector = new NodeCollector();
+        new ClassReader(bytes).accept(collector, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return collector.toNode();
+    }
+
+    private static @Nullable ClassHierarchy read(Path cacheFile, String sha1) {
+        if (Files.notExists(cacheFile))
+            return null;
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !sha1.equals(in.readUTF()))
+                return null;
+
+            int count = in.readInt();
+            Map<String, Node> classes = new HashMap<>(count * 2);
+            for (int index = 0; index < count; index++) {
+                String name = in.readUTF();
+                int access = in.readInt();
+                String superName = in.readUTF();
+                String[] interfaces = new String[in.readInt()];
+                for (int interfaceIndex = 0; interfaceIndex < interfaces.length; interfaceIndex++) {
+                    interfaces[interfaceIndex] = in.readUTF();
+                }
+
+                classes.put(name, new Node(name, access, superName.isEmpty() ? null : superName, interfaces,
+                        readMembers(in), readMembers(in)));
+            }
+
+            return new ClassHierarchy(classes);
+        } catch (EOFException exception) {
+            System.err.println("Ignoring truncated class hierarchy cache " + cacheFile);
+            return null;
+        } catch (IOException exception) {
+            System.err.println("Ignoring unreadable class hierarchy cache " + cacheFile + ": " + exception);
+            return null;
+        }
+    }
+
+    private static Map<String, Integer> readMembers(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Integer> members = new HashMap<>(count * 2);
+        for (int index = 0; index < count; index++) {
+            members.put(memberKey(in.readUTF(), in.readUTF()), in.readInt());
+        }
+
+        return members;
+    }
+
+    private void write(Path cacheFile, String sha1) throws IOException {
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(sha1);
+            out.writeInt(this.classes.size());
+            for (Node node : this.classes.values()) {
+                out.writeUTF(node.name);
+                out.writeInt(node.access);
+                out.writeUTF(node.superName == null ? "" : node.superName);
+                out.writeInt(node.interfaces.length);
+                for (String interfaceName : node.interfaces) {
+                    out.writeUTF(interfaceName);
+                }
+
+                writeMembers(out, node.methods);
+                writeMembers(out, node.fields);
+            }
+        }
+
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeMembers(DataOutputStream out, Map<String, Integer> members) throws IOException {
+        out.writeInt(members.size());
+        for (Map.Entry<String, Integer> member : members.entrySet()) {
+            int split = member.getKey().indexOf(' ');
+            out.writeUTF(member.getKey().substring(0, split));
+            out.writeUTF(member.getKey().substring(split + 1));
+            out.writeInt(member.getValue());
+        }
+    }
+
+    private static String memberKey(String name, String descriptor) {
+        return name + ' ' + descriptor;
+    }
+
+    public int size() {
+        return this.classes.size();
+    }
+
+    public @Nullable String getSuperName(String name) {
+        Node node = this.classes.get(name);
+        return node == null ? null : node.superName;
+    }
+
+    public List<String> getInterfaces(String name) {
+        Node node = this.classes.get(name);
+        return node == null ? List.of() : List.of(node.interfaces);
+    }
+
+    public boolean isInterface(String name) {
+        Node node = this.classes.get(name);
+        return node != null && (node.access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @param name the obfuscated internal name of a class
+     * @return the class and every class and interface it extends or implements, directly or not, that is in the jar
+     */
+    public Set<String> getSupertypes(String name) {
+        Set<String> supertypes = new LinkedHashSet<>();
+        collectSupertypes(name, supertypes);
+        return supertypes;
+    }
+
+    void collectSupertypes(String name, Set<String> supertypes) {
+        Node node = this.classes.get(name);
+        if (node == null || !supertypes.add(name))
+            return;
+
+        if (node.superName != null) {
+            collectSupertypes(node.superName, supertypes);
+        }
+
+        for (String interfaceName : node.interfaces) {
+            collectSupertypes(interfaceName, supertypes);
+        }
+    }
+
+    public boolean contains(String name) {
+        return this.classes.containsKey(name);
+    }
+
+    /**
+     * @return the access flags of the method if the class declares it, otherwise -1
+     */
+    public int getMethodAccess(String owner, String name, String descriptor) {
+        Node node = this.classes.get(owner);
+        return node == null ? -1 : node.methods.getOrDefault(memberKey(name, descriptor), -1);
+    }
+
+    /**
+     * @return the access flags of the field if the class declares it, otherwise -1
+     */
+    public int getFieldAccess(String owner, String name, String descriptor) {
+        Node node = this.classes.get(owner);
+        return node == null ? -1 : node.fields.getOrDefault(memberKey(name, descriptor), -1);
+    }
+
+    private record Node(String name, int access, @Nullable String superName, String[] interfaces,
+                        Map<String, Integer> methods, Map<String, Integer> fields) {
+    }
+
+    private static class NodeCollector extends ClassVisitor {
+        private final Map<String, Integer> methods = new HashMap<>();
+        private final Map<String, Integer> fields = new HashMap<>();
+        private String name;
+        private int access;
+        private String superName;
+        private String[] interfaces;
+
+        public NodeCollector() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.name = name;
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces == null ? new String[0] : interfaces;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            this.methods.put(memberKey(name, descriptor), access);
+            return null;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            this.fields.put(memberKey(name, descriptor), access);
+            return null;
+        }
+
+        public Node toNode() {
+            return new Node(this.name, this.access, this.superName, this.interfaces, this.methods, this.fields);
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package dev.turtywurty.testgradleplugin.mappings;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.ArrayList;
 import java.util.List;
 
 public class ClassMapping {
     private final String originalName;
+    private final String originalInternalName;
     private final String obfuscatedName;
     private String fileName;
     private String id;
@@ -12,8 +15,13 @@ public class ClassMapping {
     private final List<MethodMapping> methods = new ArrayList<>();
 
     public ClassMapping(String originalName, String obfuscatedName) {
-        this.originalName = originalName;
-        this.obfuscatedName = obfuscatedName;
+        this(originalName, obfuscatedName, null);
+    }
+
+    public ClassMapping(String originalName, String obfuscatedName, @Nullable SymbolPool pool) {
+        this.originalName = SymbolPool.intern(pool, originalName);
+        this.originalInternalName = SymbolPool.intern(pool, originalName.replace('.', '/'));
+        this.obfuscatedName = SymbolPool.intern(pool, obfuscatedName);
     }
 
     public void setFileName(String fileName) {
@@ -36,6 +44,13 @@ public class ClassMapping {
         return originalName;
     }
 
+    /**
+     * @return the original name with slashes instead of dots, e.g. {@code net/minecraft/client/Minecraft}
+     */
+    public String getOriginalInternalName() {
+        return originalInternalName;
+    }
+
     public String getObfuscatedName() {
         return obfuscatedName;
     }
@@ -0,0 +1,271 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Merges the remapped client and server versions of a class into one class that has the members of both, so that
+ * neither side loses anything in the joined jar.
+ * <p>
+ * Most classes are identical on both sides and pass through without being parsed. A class that is only on one side,
+ * and every field and method of a differing class that is only on one side, is marked with a generated
+ * {@link #CLIENT_ONLY} or {@link #SERVER_ONLY} annotation. Members that only one side has keep their position relative
+ * to the members both sides have. A method that both sides have keeps the client body.
+ * <p>
+ * Constructors and static initializers are the exception: the client ones never set the fields only the server has,
+ * so if the server one sets any of them, the server body is kept instead and counted as an initializer conflict. If
+ * both of them set fields only their own side has, neither body works for the joined class and the merge fails.
+ */
+public final class ClassMerger {
+    public static final String CLIENT_ONLY = "dev/turtywurty/testgradle/ClientOnly";
+    public static final String SERVER_ONLY = "dev/turtywurty/testgradle/ServerOnly";
+
+    private ClassMerger() {
+    }
+
+    /**
+     * @param client the remapped client class, or null if only the server has it
+     * @param server the remapped server class, or null if only the client has it
+     * @param stats  the counters to record merged classes and initializer conflicts in
+     * @return the merged class
+     */
+    public static byte[] merge(byte @Nullable [] client, byte @Nullable [] server, RemapStats stats) {
+        if (client == null && server == null)
+            throw new IllegalArgumentException("At least one side must have the class!");
+
+        if (server == null)
+            return markSide(client, Side.CLIENT);
+
+        if (client == null)
+            return markSide(server, Side.SERVER);
+
+        if (Arrays.equals(client, server))
+            return client;
+
+        stats.classMerged();
+        return mergeDiffering(client, server, stats);
+    }
+
+    /**
+     * Marks a whole class as belonging to one side. The constant pool and the code are copied as they are.
+     */
+    public static byte[] markSide(byte[] classBytes, Side side) {
+        var reader = new ClassReader(classBytes);
+        var writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                super.visit(version, access, name, signature, superName, interfaces);
+                // the writer keeps annotations apart from everything else, so this may come before visitSource
+                AnnotationVisitor annotation = super.visitAnnotation(side.descriptor, false);
+                if (annotation != null) {
+                    annotation.visitEnd();
+                }
+            }
+        }, 0);
+
+        return writer.toByteArray();
+    }
+
+    private static byte[] mergeDiffering(byte[] clientBytes, byte[] serverBytes, RemapStats stats) {
+        ClassNode client = read(clientBytes);
+        ClassNode server = read(serverBytes);
+
+        resolveInitializers(client, server, stats);
+        client.interfaces = union(client.interfaces, server.interfaces);
+        client.fields = mergeMembers(client.fields, server.fields, field -> field.name + ' ' + field.desc,
+                (field, side) -> field.invisibleAnnotations = annotate(field.invisibleAnnotations, side));
+        client.methods = mergeMembers(client.methods, server.methods, method -> method.name + method.desc,
+                (method, side) -> method.invisibleAnnotations = annotate(method.invisibleAnnotations, side));
+        client.innerClasses = mergeMembers(client.innerClasses, server.innerClasses, innerClass -> innerClass.name,
+                (innerClass, side) -> {
+                });
+        client.nestMembers = union(client.nestMembers, server.nestMembers);
+        client.permittedSubclasses = union(client.permittedSubclasses, server.permittedSubclasses);
+
+        var writer = new ClassWriter(0);
+        client.accept(writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Swaps in the server body of every constructor and static initializer that sets fields only the server has.
+     */
+    private static void resolveInitializers(ClassNode client, ClassNode server, RemapStats stats) {
+        if (client.fields == null || server.fields == null || client.methods == null || server.methods == null)
+            return;
+
+        Set<String> clientFields = new HashSet<>();
+        client.fields.forEach(field -> clientFields.add(field.name + ' ' + field.desc));
+        Set<String> serverFields = new HashSet<>();
+        server.fields.forEach(field -> serverFields.add(field.name + ' ' + field.desc));
+
+        Map<String, MethodNode> serverInitializers = new HashMap<>();
+        for (MethodNode method : server.methods) {
+            if (method.name.equals("<init>") || method.name.equals("<clinit>")) {
+                serverInitializers.put(method.name + method.desc, method);
+            }
+        }
+
+        for (int index = 0; index < client.methods.size(); index++) {
+            MethodNode clientMethod = client.methods.get(index);
+            MethodNode serverMethod = serverInitializers.get(clientMethod.name + clientMethod.desc);
+            if (serverMethod == null || !setsFieldMissingFrom(server.name, serverMethod, clientFields))
+                continue;
+
+            if (setsFieldMissingFrom(client.name, clientMethod, serverFields))
+                throw new IllegalStateException("Cannot merge " + client.name + "." + clientMethod.name + clientMethod.desc
+                        + ", the client and server versions both set fields only their own side has!");
+
+            client.methods.set(index, serverMethod);
+            stats.initializerConflict();
+        }
+    }
+
+    /**
+     * @return whether the method sets a field of its own class that is not in the given fields
+     */
+    private static boolean setsFieldMissingFrom(String owner, MethodNode method, Set<String> fields) {
+        for (AbstractInsnNode instruction : method.instructions) {
+            if (instruction instanceof FieldInsnNode field
+                    && (field.getOpcode() == Opcodes.PUTFIELD || field.getOpcode() == Opcodes.PUTSTATIC)
+                    && field.owner.equals(owner) && !fields.contains(field.name + ' ' + field.desc))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static ClassNode read(byte[] classBytes) {
+        var node = new ClassNode();
+        new ClassReader(classBytes).accept(node, 0);
+        return node;
+    }
+
+    /**
+     * Keeps the members of the client in their order, and puts every member only the server has right after the
+     * member both sides have that it follows in the server class.
+     */
+    private static <T> List<T> mergeMembers(@Nullable List<T> client, @Nullable List<T> server, Function<T, String> key,
+                                            BiConsumer<T, Side> mark) {
+        if (client == null || server == null)
+            return client == null ? server : client;
+
+        Set<String> clientKeys = new HashSet<>(client.size() * 2);
+        client.forEach(member -> clientKeys.add(key.apply(member)));
+
+        Set<String> serverKeys = new HashSet<>(server.size() * 2);
+        List<T> leading = new ArrayList<>();
+        Map<String, List<T>> following = new HashMap<>();
+        String anchor = null;
+        for (T member : server) {
+            String memberKey = key.apply(member);
+            serverKeys.add(memberKey);
+            if (clientKeys.contains(memberKey)) {
+                anchor = memberKey;
+                continue;
+            }
+
+            mark.accept(member, Side.SERVER);
+            (anchor == null ? leading : following.computeIfAbsent(anchor, ignored -> new ArrayList<>())).add(member);
+        }
+
+        List<T> merged = new ArrayList<>(client.size() + server.size());
+        merged.addAll(leading);
+        for (T member : client) {
+            String memberKey = key.apply(member);
+            if (!serverKeys.contains(memberKey)) {
+                mark.accept(member, Side.CLIENT);
+            }
+
+            merged.add(member);
+            merged.addAll(following.getOrDefault(memberKey, List.of()));
+        }
+
+        return merged;
+    }
+
+    private static @Nullable List<String> union(@Nullable List<String> client, @Nullable List<String> server) {
+        if (client == null || server == null)
+            return client == null ? server : client;
+
+        var union = new LinkedHashSet<>(client);
+        union.addAll(server);
+        return new ArrayList<>(union);
+    }
+
+    private static List<AnnotationNode> annotate(@Nullable List<AnnotationNode> annotations, Side side) {
+        List<AnnotationNode> annotated = annotations == null ? new ArrayList<>(1) : annotations;
+        annotated.add(new AnnotationNode(side.descriptor));
+        return annotated;
+    }
+
+    /**
+     * Generates the side annotations, which have to be in the joined output for it to compile against. They are kept
+     * in class files only, like the ones the merge adds them to.
+     *
+     * @return the class files of the annotations, keyed by entry name
+     */
+    public static Map<String, byte[]> generateAnnotations() {
+        Map<String, byte[]> annotations = new HashMap<>();
+        for (Side side : Side.values()) {
+            var writer = new ClassWriter(0);
+            writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_ANNOTATION | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+                    side.annotation, null, "java/lang/Object", new String[]{"java/lang/annotation/Annotation"});
+
+            AnnotationVisitor retention = writer.visitAnnotation("Ljava/lang/annotation/Retention;", true);
+            retention.visitEnum("value", "Ljava/lang/annotation/RetentionPolicy;", "CLASS");
+            retention.visitEnd();
+
+            AnnotationVisitor target = writer.visitAnnotation("Ljava/lang/annotation/Target;", true);
+            AnnotationVisitor elementTypes = target.visitArray("value");
+            for (String elementType : List.of("TYPE", "FIELD", "METHOD", "CONSTRUCTOR")) {
+                elementTypes.visitEnum(null, "Ljava/lang/annotation/ElementType;", elementType);
+            }
+
+            elementTypes.visitEnd();
+            target.visitEnd();
+            writer.visitEnd();
+            annotations.put(side.annotation + ".class", writer.toByteArray());
+        }
+
+        return annotations;
+    }
+
+    public enum Side {
+        CLIENT(CLIENT_ONLY),
+        SERVER(SERVER_ONLY);
+
+        private final String annotation;
+        private final String descriptor;
+
+        Side(String annotation) {
+            this.annotation = annotation;
+            this.descriptor = 'L' + annotation + ';';
+        }
+
+        public String getAnnotation() {
+            return this.annotation;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
+import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges the remapped client and server directories into the joined directory.
+ * <p>
+ * Both trees are walked once up front, which gives the size of every file along with its name, and every directory
+ * of the joined tree is created before any file is written. The files are then processed in parallel: a file that
+ * only one side has, or that is the same on both sides, is hard linked into the joined tree (or copied where links
+ * are not supported), and only classes that differ are read and merged by the {@link ClassMerger}. Files of the same
+ * size are compared by their SHA-1 from the {@link FileHashCache}, so an unchanged tree is not read again.
+ * <p>
+ * Linking is safe because the remapper replaces the files it writes instead of writing into them.
+ */
+public final class DirectoryMerger {
+    private final Path clientDir, serverDir, joinedDir;
+    private final FileHashCache hashCache;
+    private final LongAdder linked = new LongAdder();
+    private final LongAdder copied = new LongAdder();
+    private final RemapStats stats = new RemapStats();
+    private final LongAdder marked = new LongAdder();
+    private volatile boolean linksSupported = true;
+
+    public DirectoryMerger(Path clientDir, Path serverDir, Path joinedDir, FileHashCache hashCache) {
+        this.clientDir = clientDir;
+        this.serverDir = serverDir;
+        this.joinedDir = joinedDir;
+        this.hashCache = hashCache;
+    }
+
+    /**
+     * @param pool the pool to merge the files in, the joined directory is expected to be empty
+     * @return what was done with the files
+     */
+    public Result merge(ForkJoinPool pool) {
+        Map<Path, Long> clientFiles = walk(this.clientDir);
+        Map<Path, Long> serverFiles = walk(this.serverDir);
+        Map<String, byte[]> annotations = ClassMerger.generateAnnotations();
+
+        Set<Path> files = new TreeSet<>(clientFiles.keySet());
+        files.addAll(serverFiles.keySet());
+
+        Set<Path> directories = new TreeSet<>();
+        for (Path file : files) {
+            addParent(directories, file);
+        }
+
+        for (String annotation : annotations.keySet()) {
+            addParent(directories, Path.of(annotation));
+        }
+
+        try {
+            // sorted, so every parent is created before its children
+            for (Path directory : directories) {
+                Files.createDirectories(this.joinedDir.resolve(directory));
+            }
+
+            for (Map.Entry<String, byte[]> annotation : annotations.entrySet()) {
+                Files.write(this.joinedDir.resolve(annotation.getKey()), annotation.getValue());
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to prepare joined directory " + this.joinedDir + "!", exception);
+        }
+
+        List<Path> work = List.copyOf(files);
+        pool.submit(() -> work.parallelStream().forEach(file -> {
+            try {
+                mergeFile(file, clientFiles.get(file), serverFiles.get(file));
+            } catch (IOException | RuntimeException exception) {
+                throw new IllegalStateException("Failed to merge " + file + "!", exception);
+            }
+        })).join();
+
+        return new Result(work.size(), directories.size(), (int) this.linked.sum(), (int) this.copied.sum(),
+                (int) this.stats.getMergedClasses(), (int) this.stats.getInitializerConflicts(), (int) this.marked.sum());
+    }
+
+    private void mergeFile(Path file, @Nullable Long clientSize, @Nullable Long serverSize) throws IOException {
+        Path clientFile = this.clientDir.resolve(file);
+        Path serverFile = this.serverDir.resolve(file);
+        Path joinedFile = this.joinedDir.resolve(file);
+        if (!file.getFileName().toString().endsWith(".class")) {
+            // resources are taken from the client
+            link(joinedFile, clientSize != null ? clientFile : serverFile);
+            return;
+        }
+
+        if (clientSize == null || serverSize == null) {
+            Path source = clientSize != null ? clientFile : serverFile;
+            Files.write(joinedFile, ClassMerger.markSide(Files.readAllBytes(source),
+                    clientSize != null ? ClassMerger.Side.CLIENT : ClassMerger.Side.SERVER));
+            this.marked.increment();
+            return;
+        }
+
+        if (clientSize.equals(serverSize) && this.hashCache.hash(clientFile, HashingFunction.SHA1)
+                .equals(this.hashCache.hash(serverFile, HashingFunction.SHA1))) {
+            link(joinedFile, clientFile);
+            return;
+        }
+
+        Files.write(joinedFile, ClassMerger.merge(Files.readAllBytes(clientFile), Files.readAllBytes(serverFile), this.stats));
+    }
+
+    private void link(Path link, Path existing) throws IOException {
+        if (this.linksSupported) {
+            try {
+                Files.createLink(link, existing);
+                this.linked.increment();
+                return;
+            } catch (UnsupportedOperationException | FileSystemException exception) {
+                Files.deleteIfExists(link);
+                if (exception instanceof FileSystemException fileSystemException && !FileUtil.isLinkUnsupported(fileSystemException.getReason())) {
+                    System.out.println("Failed to link " + link + " to " + existing + ", copying it instead: " + exception);
+                } else if (this.linksSupported) {
+                    System.out.println("Hard links from " + existing.getParent() + " to " + link.getParent() + " are not supported, copying instead: " + exception);
+                    this.linksSupported = false;
+                }
+            }
+        }
+
+        Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING);
+        this.copied.increment();
+    }
+
+    /**
+     * @return the size of every file in the directory, keyed by its path relative to the directory
+     */
+    private static Map<Path, Long> walk(Path dir) {
+        Map<Path, Long> files = new HashMap<>();
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        files.put(dir.relativize(file), attributes.size());
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to walk " + dir + "!", exception);
+        }
+
+        return files;
+    }
+
+    private static void addParent(Set<Path> directories, Path file) {
+        Path parent = file.getParent();
+        if (parent != null) {
+            directories.add(parent);
+        }
+    }
+
+    /**
+     * @param files       the number of files in the joined directory, not counting the side annotations
+     * @param directories the number of directories created
+     * @param linked      how many files were hard linked from either side
+     * @param copied      how many files were copied because links are not supported
+     * @param merged      how many classes differed and were merged
+     * @param conflicts   how many constructors and static initializers of merged classes kept the server body
+     * @param marked      how many classes only one side has
+     */
+    public record Result(int files, int directories, int linked, int copied, int merged, int conflicts, int marked) {
+    }
+}
@@ -1,23 +1,38 @@
 package dev.turtywurty.testgradleplugin.mappings;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.Objects;
 
 public final class FieldMapping {
     private final String descriptor;
+    private final String asmDescriptor;
     private final String originalName;
     private final String obfuscatedName;
     private String obfuscatedDescriptor;
 
     public FieldMapping(String descriptor, String originalName, String obfuscatedName) {
-        this.descriptor = descriptor;
-        this.originalName = originalName;
-        this.obfuscatedName = obfuscatedName;
+        this(descriptor, originalName, obfuscatedName, null);
+    }
+
+    public FieldMapping(String descriptor, String originalName, String obfuscatedName, @Nullable SymbolPool pool) {
+        this.descriptor = SymbolPool.intern(pool, descriptor);
+        this.asmDescriptor = SymbolPool.intern(pool, TypeDescriptors.toAsmTypeDescriptor(descriptor));
+        this.originalName = SymbolPool.intern(pool, originalName);
+        this.obfuscatedName = SymbolPool.intern(pool, obfuscatedName);
     }
 
     public String getDescriptor() {
         return descriptor;
     }
 
+    /**
+     * @return the JVM descriptor using the original class names, e.g. {@code Ljava/lang/String;}
+     */
+    public String getAsmDescriptor() {
+        return asmDescriptor;
+    }
+
     public String getOriginalName() {
         return originalName;
     }
@@ -0,0 +1,183 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Remaps a jar straight into another jar, without extracting it to disk first.
+ * <p>
+ * Entries are read from the input jar on worker threads, class entries are remapped there too, and the results are
+ * written to the output jar in the order of the input jar. Only a bounded window of entries is in flight at any time,
+ * so memory use stays flat regardless of the size of the jar.
+ */
+public final class JarRemapper {
+    private JarRemapper() {
+    }
+
+    /**
+     * @param inputJar  the obfuscated jar
+     * @param outputJar the jar to write, replaced if it exists
+     * @param mappings  the index built from the mappings of the jar
+     * @param executor  the executor to read and remap entries on
+     * @param window    the maximum number of entries in flight
+     * @return the number of classes that were remapped
+     */
+    public static int remapJar(Path inputJar, Path outputJar, MappingsIndex mappings, ExecutorService executor, int window) {
+        return remapJar(inputJar, outputJar, mappings, RemapManifest.empty(), RemapManifest.empty(), RemapStats.NONE, executor, window).classes();
+    }
+
+    /**
+     * Remaps a jar, copying every class that is unchanged according to the previous manifest straight out of the
+     * previous output jar instead of remapping it again.
+     *
+     * @param inputJar  the obfuscated jar
+     * @param outputJar the jar to write, replaced if it exists
+     * @param mappings  the index built from the mappings of the jar
+     * @param previous  the manifest of the previous output jar, may be empty
+     * @param current   the manifest to record the classes of the new output jar in
+     * @param stats     the counters of the current run
+     * @param executor  the executor to read and remap entries on
+     * @param window    the maximum number of entries in flight
+     * @return the number of classes written and how many of those were reused
+     */
+    public static Result remapJar(Path inputJar, Path outputJar, MappingsIndex mappings, RemapManifest previous,
+                                  RemapManifest current, RemapStats stats, ExecutorService executor, int window) {
+        Path tempJar = outputJar.resolveSibling(outputJar.getFileName() + ".tmp");
+        int classCount = 0, reusedCount = 0;
+        try {
+            Files.createDirectories(outputJar.getParent());
+
+            try (var zipFile = new ZipFile(inputJar.toFile());
+                 ZipFile previousJar = previous.isEmpty() || Files.notExists(outputJar) ? null : new ZipFile(outputJar.toFile());
+                 var jos = new JarOutputStream(Files.newOutputStream(tempJar))) {
+                var context = new Context(zipFile, previousJar, mappings, previous, current, stats);
+                List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+                Deque<CompletableFuture<Entry>> inFlight = new ArrayDeque<>(window);
+                Set<String> written = new HashSet<>();
+                for (ZipEntry entry : entries) {
+                    if (entry.isDirectory() || isSignature(entry.getName()))
+                        continue;
+
+                    if (inFlight.size() >= window) {
+                        Entry next = inFlight.removeFirst().join();
+                        if (write(jos, next, written)) {
+                            classCount += next.isClass ? 1 : 0;
+                            reusedCount += next.reused ? 1 : 0;
+                        }
+                    }
+
+                    inFlight.addLast(CompletableFuture.supplyAsync(() -> process(context, entry), executor));
+                }
+
+                while (!inFlight.isEmpty()) {
+                    Entry next = inFlight.removeFirst().join();
+                    if (write(jos, next, written)) {
+                        classCount += next.isClass ? 1 : 0;
+                        reusedCount += next.reused ? 1 : 0;
+                    }
+                }
+            }
+
+            Files.move(tempJar, outputJar, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to remap jar " + inputJar + " to " + outputJar, exception);
+        } catch (CompletionException exception) {
+            throw new IllegalStateException("Failed to remap jar " + inputJar, exception.getCause());
+        } finally {
+            try {
+                Files.deleteIfExists(tempJar);
+            } catch (IOException ignored) {
+            }
+        }
+
+        return new Result(classCount, reusedCount);
+    }
+
+    private static Entry process(Context context, ZipEntry entry) {
+        byte[] bytes = read(context.zipFile, entry);
+        if (!entry.getName().endsWith(".class"))
+            return new Entry(entry.getName(), bytes, false, false);
+
+        try {
+            RemapManifest.Entry hashed = RemapManifest.hash(bytes, context.mappings);
+            RemapManifest.Entry previous = context.previous.get(entry.getName());
+            if (context.previousJar != null && hashed.isSameAs(previous)) {
+                ZipEntry previousEntry = context.previousJar.getEntry(previous.output());
+                if (previousEntry != null) {
+                    context.current.put(entry.getName(), previous);
+                    context.stats.classReused();
+                    return new Entry(previous.output(), read(context.previousJar, previousEntry), true, true);
+                }
+            }
+
+            RemapperTool.RemappedClass remapped = RemapperTool.remapClass(bytes, context.mappings, context.stats);
+            String output = remapped.name() + ".class";
+            context.current.put(entry.getName(), hashed.withOutput(output));
+            return new Entry(output, remapped.bytes(), true, false);
+        } catch (Exception exception) {
+            throw new IllegalStateException("Failed to remap class: " + entry.getName(), exception);
+        }
+    }
+
+    static byte[] read(ZipFile zipFile, ZipEntry entry) {
+        try (InputStream stream = zipFile.getInputStream(entry)) {
+            return stream.readAllBytes();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read " + entry.getName(), exception);
+        }
+    }
+
+    private static boolean write(JarOutputStream jos, Entry entry, Set<String> written) throws IOException {
+        if (!written.add(entry.name))
+            return false;
+
+        jos.putNextEntry(new JarEntry(entry.name));
+        jos.write(entry.bytes);
+        jos.closeEntry();
+        return true;
+    }
+
+    /**
+     * Remapping changes the class files, so any signature files would no longer match.
+     */
+    static boolean isSignature(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+            return false;
+
+        String upper = name.toUpperCase(Locale.ROOT);
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC");
+    }
+
+    /**
+     * @param classes the number of classes in the output jar
+     * @param reused  how many of those were copied from the previous output jar
+     */
+    public record Result(int classes, int reused) {
+    }
+
+    private record Context(ZipFile zipFile, @Nullable ZipFile previousJar, MappingsIndex mappings,
+                           RemapManifest previous, RemapManifest current, RemapStats stats) {
+    }
+
+    private record Entry(String name, byte[] bytes, boolean isClass, boolean reused) {
+    }
+}
@@ -0,0 +1,263 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Remaps the client and server jars straight into one joined jar, in a single pass over both of them. Nothing is
+ * extracted, and no remapped jar per side is written.
+ * <p>
+ * The remapped name of every class is known from the mappings before it is remapped, so the entries of both jars are
+ * first paired up by their output name. Each pair is then read, remapped and merged by the {@link ClassMerger} on
+ * worker threads, and the results are written in order, client entries first, with only a bounded window of pairs in
+ * flight as in {@link JarRemapper}. A resource that is in both jars is taken from the client.
+ * <p>
+ * The manifest of the joined jar is keyed by output name, and pairs whose classes and mapping entries are unchanged
+ * on both sides are copied from the previous joined jar instead of being remapped again.
+ */
+public final class JoinedJarRemapper {
+    private JoinedJarRemapper() {
+    }
+
+    /**
+     * @param clientJar      the obfuscated client jar
+     * @param clientMappings the index built from the client mappings
+     * @param serverJar      the obfuscated (unbundled) server jar
+     * @param serverMappings the index built from the server mappings
+     * @param outputJar      the joined jar to write, replaced if it exists
+     * @param previous       the manifest of the previous joined jar, may be empty
+     * @param current        the manifest to record the classes of the new joined jar in
+     * @param stats          the counters of the current run
+     * @param debugDir       if not null, every remapped entry is also written to the {@code remapped_client},
+     *                       {@code remapped_server} and {@code remapped_joined} directories in it, which are expected
+     *                       to be empty
+     * @param executor       the executor to read and remap entries on
+     * @param window         the maximum number of pairs in flight
+     * @return the number of entries written from each side
+     */
+    public static Result remapJoined(Path clientJar, MappingsIndex clientMappings, Path serverJar, MappingsIndex serverMappings,
+                                     Path outputJar, RemapManifest previous, RemapManifest current, RemapStats stats,
+                                     @Nullable Path debugDir, ExecutorService executor, int window) {
+        Path tempJar = outputJar.resolveSibling(outputJar.getFileName() + ".tmp");
+        int classCount = 0, reusedCount = 0;
+        List<Pair> pairs;
+        try {
+            Files.createDirectories(outputJar.getParent());
+
+            try (var clientZip = new ZipFile(clientJar.toFile());
+                 var serverZip = new ZipFile(serverJar.toFile());
+                 ZipFile previousJar = previous.isEmpty() || debugDir != null || Files.notExists(outputJar) ? null : new ZipFile(outputJar.toFile());
+                 var jos = new JarOutputStream(Files.newOutputStream(tempJar))) {
+                var context = new Context(clientZip, serverZip, previousJar, clientMappings, serverMappings,
+                        previous, current, stats, debugDir);
+                pairs = pair(clientZip, clientMappings, serverZip, serverMappings);
+
+                Deque<CompletableFuture<Entry>> inFlight = new ArrayDeque<>(window);
+                Set<String> written = new HashSet<>();
+                for (Pair pair : pairs) {
+                    if (inFlight.size() >= window) {
+                        Entry next = inFlight.removeFirst().join();
+                        if (write(jos, next, written)) {
+                            classCount += next.isClass ? 1 : 0;
+                            reusedCount += next.reused ? 1 : 0;
+                        }
+                    }
+
+                    inFlight.addLast(CompletableFuture.supplyAsync(() -> process(context, pair), executor));
+                }
+
+                while (!inFlight.isEmpty()) {
+                    Entry next = inFlight.removeFirst().join();
+                    if (write(jos, next, written)) {
+                        classCount += next.isClass ? 1 : 0;
+                        reusedCount += next.reused ? 1 : 0;
+                    }
+                }
+
+                for (Map.Entry<String, byte[]> annotation : ClassMerger.generateAnnotations().entrySet()) {
+                    write(jos, new Entry(annotation.getKey(), annotation.getValue(), false, false), written);
+                    writeDebug(context, "remapped_joined", annotation.getKey(), annotation.getValue());
+                }
+            }
+
+            Files.move(tempJar, outputJar, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to remap " + clientJar + " and " + serverJar + " to " + outputJar, exception);
+        } catch (CompletionException exception) {
+            throw new IllegalStateException("Failed to remap " + clientJar + " and " + serverJar, exception.getCause());
+        } finally {
+            try {
+                Files.deleteIfExists(tempJar);
+            } catch (IOException ignored) {
+            }
+        }
+
+        int clientOnly = 0, serverOnly = 0;
+        for (Pair pair : pairs) {
+            if (pair.server == null) {
+                clientOnly++;
+            } else if (pair.client == null) {
+                serverOnly++;
+            }
+        }
+
+        return new Result(classCount, reusedCount, clientOnly, serverOnly, pairs.size() - clientOnly - serverOnly);
+    }
+
+    /**
+     * Pairs the entries of both jars by the name they will have in the joined jar, in the order of the client jar
+     * followed by the entries that are only in the server jar.
+     */
+    private static List<Pair> pair(ZipFile clientZip, MappingsIndex clientMappings, ZipFile serverZip, MappingsIndex serverMappings) {
+        Map<String, ZipEntry> serverEntries = new LinkedHashMap<>();
+        for (ZipEntry entry : Collections.list(serverZip.entries())) {
+            if (!entry.isDirectory() && !JarRemapper.isSignature(entry.getName())) {
+                serverEntries.putIfAbsent(outputName(entry, serverMappings), entry);
+            }
+        }
+
+        List<Pair> pairs = new ArrayList<>(serverEntries.size() * 2);
+        Set<String> clientOutputs = new HashSet<>();
+        for (ZipEntry entry : Collections.list(clientZip.entries())) {
+            if (entry.isDirectory() || JarRemapper.isSignature(entry.getName()))
+                continue;
+
+            String output = outputName(entry, clientMappings);
+            if (clientOutputs.add(output)) {
+                pairs.add(new Pair(output, entry, serverEntries.remove(output)));
+            }
+        }
+
+        serverEntries.forEach((output, entry) -> pairs.add(new Pair(output, null, entry)));
+        return pairs;
+    }
+
+    /**
+     * Classes are stored under their internal name, so the remapped name follows from the mappings alone. A class
+     * without a mapping keeps its name here, remapping it fails later on.
+     */
+    private static String outputName(ZipEntry entry, MappingsIndex mappings) {
+        String name = entry.getName();
+        if (!name.endsWith(".class"))
+            return name;
+
+        String mapped = mappings.mapClass(name.substring(0, name.length() - ".class".length()));
+        return mapped == null ? name : mapped + ".class";
+    }
+
+    private static Entry process(Context context, Pair pair) {
+        if (!pair.output.endsWith(".class")) {
+            byte[] bytes = pair.client != null ? JarRemapper.read(context.clientZip, pair.client) : JarRemapper.read(context.serverZip, pair.server);
+            writeDebug(context, "remapped_joined", pair.output, bytes);
+            return new Entry(pair.output, bytes, false, false);
+        }
+
+        try {
+            byte[] clientBytes = pair.client == null ? null : JarRemapper.read(context.clientZip, pair.client);
+            byte[] serverBytes = pair.server == null ? null : JarRemapper.read(context.serverZip, pair.server);
+            RemapManifest.Entry hashed = combine(clientBytes == null ? null : RemapManifest.hash(clientBytes, context.clientMappings),
+                    serverBytes == null ? null : RemapManifest.hash(serverBytes, context.serverMappings));
+
+            RemapManifest.Entry last = context.previous.get(pair.output);
+            if (context.previousJar != null && hashed.isSameAs(last)) {
+                ZipEntry previousEntry = context.previousJar.getEntry(last.output());
+                if (previousEntry != null) {
+                    context.current.put(pair.output, last);
+                    context.stats.classReused();
+                    return new Entry(last.output(), JarRemapper.read(context.previousJar, previousEntry), true, true);
+                }
+            }
+
+            byte[] clientRemapped = clientBytes == null ? null : remap(context, clientBytes, context.clientMappings, "remapped_client");
+            byte[] serverRemapped = serverBytes == null ? null : remap(context, serverBytes, context.serverMappings, "remapped_server");
+            byte[] bytes = ClassMerger.merge(clientRemapped, serverRemapped, context.stats);
+
+            context.current.put(pair.output, hashed.withOutput(pair.output));
+            writeDebug(context, "remapped_joined", pair.output, bytes);
+            return new Entry(pair.output, bytes, true, false);
+        } catch (Exception exception) {
+            throw new IllegalStateException("Failed to remap class: " + pair.output, exception);
+        }
+    }
+
+    /**
+     * Combines the hashes of both sides of a pair into one manifest entry, so a side that changed, appeared or
+     * disappeared since the previous run means the pair is remapped again.
+     */
+    private static RemapManifest.Entry combine(RemapManifest.@Nullable Entry client, RemapManifest.@Nullable Entry server) {
+        return new RemapManifest.Entry(
+                (client == null ? "-" : client.input()) + '|' + (server == null ? "-" : server.input()),
+                (client == null ? "-" : client.mappings()) + '|' + (server == null ? "-" : server.mappings()),
+                null);
+    }
+
+    private static byte[] remap(Context context, byte[] classBytes, MappingsIndex mappings, String debugName) {
+        RemapperTool.RemappedClass remapped = RemapperTool.remapClass(classBytes, mappings, context.stats);
+        writeDebug(context, debugName, remapped.name() + ".class", remapped.bytes());
+        return remapped.bytes();
+    }
+
+    private static void writeDebug(Context context, String directory, String name, byte[] bytes) {
+        if (context.debugDir == null)
+            return;
+
+        Path target = context.debugDir.resolve(directory).resolve(name);
+        try {
+            Files.createDirectories(target.getParent());
+            Files.write(target, bytes);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to write debug output " + target, exception);
+        }
+    }
+
+    private static boolean write(JarOutputStream jos, Entry entry, Set<String> written) throws IOException {
+        if (!written.add(entry.name))
+            return false;
+
+        jos.putNextEntry(new JarEntry(entry.name));
+        jos.write(entry.bytes);
+        jos.closeEntry();
+        return true;
+    }
+
+    /**
+     * @param classes    the number of classes in the joined jar
+     * @param reused     how many of those were copied from the previous joined jar
+     * @param clientOnly the number of entries only in the client jar
+     * @param serverOnly the number of entries only in the server jar
+     * @param shared     the number of entries in both jars
+     */
+    public record Result(int classes, int reused, int clientOnly, int serverOnly, int shared) {
+    }
+
+    private record Pair(String output, @Nullable ZipEntry client, @Nullable ZipEntry server) {
+    }
+
+    private record Context(ZipFile clientZip, ZipFile serverZip, @Nullable ZipFile previousJar,
+                           MappingsIndex clientMappings, MappingsIndex serverMappings, RemapManifest previous,
+                           RemapManifest current, RemapStats stats, @Nullable Path debugDir) {
+    }
+
+    private record Entry(String name, byte[] bytes, boolean isClass, boolean reused) {
+    }
+}
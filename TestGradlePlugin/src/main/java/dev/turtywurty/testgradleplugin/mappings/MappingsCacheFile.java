@@ -0,0 +1,235 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary copy of a parsed mappings file, written next to the text file so that later builds can skip
+ * parsing entirely.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int    magic, int version
+ * short  sha1 length, byte[] sha1 (of the text mappings this was built from)
+ * int    string count, int[count + 1] string offsets, byte[] UTF-8 string data
+ * int    class count, then per class:  int original, int obfuscated, int fileName, int id, int fields, int methods
+ * fields in class order, per field:    int descriptor, int original, int obfuscated
+ * methods in class order, per method:  int startLine, int endLine, int signature, int obfuscated
+ * </pre>
+ * Strings are referenced by their index in the pool, with -1 meaning null. Every distinct string is stored once.
+ */
+public final class MappingsCacheFile {
+    private static final int MAGIC = 0x544D4150; // TMAP
+    private static final int VERSION = 3;
+
+    private MappingsCacheFile() {
+    }
+
+    /**
+     * Reads a cache file, memory mapping it.
+     *
+     * @param cacheFile the binary cache file
+     * @param sha1      the SHA-1 of the text mappings the cache must have been built from
+     * @param pool      the pool to intern names and descriptors into
+     * @return the class mappings, or null if the cache is missing, stale or unreadable
+     */
+    public static @Nullable List<ClassMapping> read(Path cacheFile, String sha1, SymbolPool pool) {
+        if (Files.notExists(cacheFile))
+            return null;
+
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            byte[] hash = new byte[buffer.getShort()];
+            buffer.get(hash);
+            if (!sha1.equals(new String(hash, StandardCharsets.US_ASCII)))
+                return null;
+
+            String[] strings = readStringPool(buffer);
+
+            int classCount = buffer.getInt();
+            var classes = new ClassMapping[classCount];
+            int[] fieldCounts = new int[classCount];
+            int[] methodCounts = new int[classCount];
+            for (int index = 0; index < classCount; index++) {
+                var mapping = new ClassMapping(strings[buffer.getInt()], strings[buffer.getInt()], pool);
+                mapping.setFileName(pool.intern(string(strings, buffer.getInt())));
+                mapping.setId(pool.intern(string(strings, buffer.getInt())));
+                fieldCounts[index] = buffer.getInt();
+                methodCounts[index] = buffer.getInt();
+                classes[index] = mapping;
+            }
+
+            for (int index = 0; index < classCount; index++) {
+                for (int field = 0; field < fieldCounts[index]; field++) {
+                    classes[index].addFieldMapping(new FieldMapping(
+                            strings[buffer.getInt()], strings[buffer.getInt()], strings[buffer.getInt()], pool));
+                }
+            }
+
+            for (int index = 0; index < classCount; index++) {
+                for (int method = 0; method < methodCounts[index]; method++) {
+                    classes[index].addMethodMapping(new MethodMapping(
+                            buffer.getInt(), buffer.getInt(), strings[buffer.getInt()], strings[buffer.getInt()], pool));
+                }
+            }
+
+            return List.of(classes);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException exception) {
+            System.err.println("Ignoring unreadable mappings cache " + cacheFile + ": " + exception);
+            return null;
+        }
+    }
+
+    private static String[] readStringPool(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        int[] offsets = new int[count + 1];
+        for (int index = 0; index <= count; index++) {
+            offsets[index] = buffer.getInt();
+        }
+
+        byte[] data = new byte[offsets[count]];
+        buffer.get(data);
+
+        var strings = new String[count];
+        for (int index = 0; index < count; index++) {
+            strings[index] = new String(data, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+        }
+
+        return strings;
+    }
+
+    private static @Nullable String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    /**
+     * Writes the given mappings to a cache file. The file is written to a temporary sibling first and then moved into
+     * place, so a concurrent reader never sees a half written cache.
+     *
+     * @param cacheFile the binary cache file
+     * @param sha1      the SHA-1 of the text mappings
+     * @param classes   the parsed class mappings
+     * @throws IOException if writing the file fails
+     */
+    public static void write(Path cacheFile, String sha1, List<ClassMapping> classes) throws IOException {
+        var pool = new StringPool();
+        int fieldCount = 0, methodCount = 0;
+        for (ClassMapping mapping : classes) {
+            pool.add(mapping.getOriginalName());
+            pool.add(mapping.getObfuscatedName());
+            pool.add(mapping.getFileName());
+            pool.add(mapping.getId());
+            for (FieldMapping field : mapping.getFields()) {
+                pool.add(field.getDescriptor());
+                pool.add(field.getOriginalName());
+                pool.add(field.getObfuscatedName());
+            }
+
+            for (MethodMapping method : mapping.getMethods()) {
+                pool.add(method.getSignature());
+                pool.add(method.getObfuscatedName());
+            }
+
+            fieldCount += mapping.getFields().size();
+            methodCount += mapping.getMethods().size();
+        }
+
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            byte[] hash = sha1.getBytes(StandardCharsets.US_ASCII);
+            out.writeShort(hash.length);
+            out.write(hash);
+
+            pool.write(out);
+
+            out.writeInt(classes.size());
+            for (ClassMapping mapping : classes) {
+                out.writeInt(pool.indexOf(mapping.getOriginalName()));
+                out.writeInt(pool.indexOf(mapping.getObfuscatedName()));
+                out.writeInt(pool.indexOf(mapping.getFileName()));
+                out.writeInt(pool.indexOf(mapping.getId()));
+                out.writeInt(mapping.getFields().size());
+                out.writeInt(mapping.getMethods().size());
+            }
+
+            for (ClassMapping mapping : classes) {
+                for (FieldMapping field : mapping.getFields()) {
+                    out.writeInt(pool.indexOf(field.getDescriptor()));
+                    out.writeInt(pool.indexOf(field.getOriginalName()));
+                    out.writeInt(pool.indexOf(field.getObfuscatedName()));
+                }
+            }
+
+            for (ClassMapping mapping : classes) {
+                for (MethodMapping method : mapping.getMethods()) {
+                    out.writeInt(method.getStartLine());
+                    out.writeInt(method.getEndLine());
+                    out.writeInt(pool.indexOf(method.getSignature()));
+                    out.writeInt(pool.indexOf(method.getObfuscatedName()));
+                }
+            }
+        }
+
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Wrote mappings cache " + cacheFile.getFileName() + " (" + classes.size() + " classes, "
+                + fieldCount + " fields, " + methodCount + " methods, " + pool.size() + " strings)");
+    }
+
+    private static class StringPool {
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final List<byte[]> strings = new ArrayList<>();
+
+        public void add(@Nullable String value) {
+            if (value == null || this.indices.containsKey(value))
+                return;
+
+            this.indices.put(value, this.strings.size());
+            this.strings.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public int indexOf(@Nullable String value) {
+            return value == null ? -1 : this.indices.get(value);
+        }
+
+        public int size() {
+            return this.strings.size();
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(this.strings.size());
+
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : this.strings) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+
+            for (byte[] bytes : this.strings) {
+                out.write(bytes);
+            }
+        }
+    }
+}
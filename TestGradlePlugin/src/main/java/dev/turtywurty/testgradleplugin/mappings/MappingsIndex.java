@@ -0,0 +1,296 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.Opcodes;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable lookup table built from a list of {@link ClassMapping}s.
+ * <p>
+ * Classes are keyed by their obfuscated internal name, and members are keyed by obfuscated name and then by
+ * obfuscated descriptor, so every lookup is a couple of hash probes and never allocates.
+ */
+public final class MappingsIndex {
+    // Stands in for "not mapped" in the memo tables, which cannot hold null
+    private static final String UNMAPPED = new String("<unmapped>");
+
+    private final Map<String, ClassEntry> classes;
+    private final @Nullable ClassHierarchy hierarchy;
+    private final Map<MemberKey, String> inheritedMethods = new ConcurrentHashMap<>();
+    private final Map<MemberKey, String> inheritedFields = new ConcurrentHashMap<>();
+    private final Map<MemberKey, Boolean> jarMethods = new ConcurrentHashMap<>();
+    private final Map<MemberKey, Boolean> jarFields = new ConcurrentHashMap<>();
+
+    private MappingsIndex(Map<String, ClassEntry> classes, @Nullable ClassHierarchy hierarchy) {
+        this.classes = classes;
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Builds an index over the given mappings. The obfuscated descriptors of the members must already be resolved.
+     *
+     * @param mappings the class mappings to index
+     * @return the index
+     */
+    public static MappingsIndex of(List<ClassMapping> mappings) {
+        Map<String, ClassEntry> classes = new HashMap<>(mappings.size() * 2);
+        for (ClassMapping mapping : mappings) {
+            Map<String, Map<String, String>> methods = new HashMap<>();
+            for (MethodMapping method : mapping.getMethods()) {
+                if (method.getObfuscatedDescriptor() == null)
+                    continue;
+
+                methods.computeIfAbsent(method.getObfuscatedName(), name -> new HashMap<>())
+                        .putIfAbsent(method.getObfuscatedDescriptor(), method.getOriginalName());
+            }
+
+            Map<String, Map<String, String>> fields = new HashMap<>();
+            for (FieldMapping field : mapping.getFields()) {
+                if (field.getObfuscatedDescriptor() == null)
+                    continue;
+
+                fields.computeIfAbsent(field.getObfuscatedName(), name -> new HashMap<>())
+                        .putIfAbsent(field.getObfuscatedDescriptor(), field.getOriginalName());
+            }
+
+            classes.putIfAbsent(mapping.getObfuscatedName(),
+                    new ClassEntry(mapping, mapping.getOriginalInternalName(), freeze(methods), freeze(fields), fingerprint(mapping)));
+        }
+
+        return new MappingsIndex(Map.copyOf(classes), null);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash over everything the remapper reads from a class mapping, in file order.
+     */
+    private static long fingerprint(ClassMapping mapping) {
+        long hash = mix(0xcbf29ce484222325L, mapping.getOriginalInternalName());
+        for (MethodMapping method : mapping.getMethods()) {
+            hash = mix(mix(mix(hash, method.getObfuscatedName()), method.getObfuscatedDescriptor()), method.getOriginalName());
+        }
+
+        for (FieldMapping field : mapping.getFields()) {
+            hash = mix(mix(mix(hash, field.getObfuscatedName()), field.getObfuscatedDescriptor()), field.getOriginalName());
+        }
+
+        // Never 0, that is reserved for unmapped classes
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long hash, @Nullable String value) {
+        if (value == null)
+            return (hash ^ 0xFF) * 0x100000001b3L;
+
+        for (int index = 0; index < value.length(); index++) {
+            hash = (hash ^ value.charAt(index)) * 0x100000001b3L;
+        }
+
+        return (hash ^ 0xFE) * 0x100000001b3L;
+    }
+
+    private static Map<String, Map<String, String>> freeze(Map<String, Map<String, String>> members) {
+        if (members.isEmpty())
+            return Map.of();
+
+        Map<String, Map<String, String>> frozen = new HashMap<>(members.size() * 2);
+        members.forEach((name, descriptors) -> frozen.put(name, Map.copyOf(descriptors)));
+        return Map.copyOf(frozen);
+    }
+
+    /**
+     * Returns an index over the same mappings that also resolves members referenced through a subclass or an
+     * interface of their declaring class, using the given hierarchy. Resolved lookups are memoized, so each distinct
+     * reference walks the hierarchy only once.
+     *
+     * @param hierarchy the hierarchy of the obfuscated jar
+     * @return the new index
+     */
+    public MappingsIndex withHierarchy(ClassHierarchy hierarchy) {
+        return new MappingsIndex(this.classes, hierarchy);
+    }
+
+    public @Nullable ClassHierarchy getHierarchy() {
+        return this.hierarchy;
+    }
+
+    public boolean isEmpty() {
+        return this.classes.isEmpty();
+    }
+
+    public int size() {
+        return this.classes.size();
+    }
+
+    public @Nullable ClassMapping getClassMapping(String obfuscatedName) {
+        ClassEntry entry = this.classes.get(obfuscatedName);
+        return entry == null ? null : entry.mapping;
+    }
+
+    /**
+     * @param obfuscatedName the obfuscated internal name of a class
+     * @return the original internal name (slash separated), or null if the class is not mapped
+     */
+    public @Nullable String mapClass(String obfuscatedName) {
+        ClassEntry entry = this.classes.get(obfuscatedName);
+        return entry == null ? null : entry.originalInternalName;
+    }
+
+    /**
+     * @param obfuscatedName the obfuscated internal name of a class
+     * @return a hash of the mapping entry of the class that changes whenever its remapped output could, or 0 if the
+     * class is not mapped
+     */
+    public long fingerprint(String obfuscatedName) {
+        ClassEntry entry = this.classes.get(obfuscatedName);
+        return entry == null ? 0 : entry.fingerprint;
+    }
+
+    public @Nullable String mapMethod(String owner, String name, String descriptor) {
+        String mapped = mapDeclaredMethod(owner, name, descriptor);
+        if (mapped != null || this.hierarchy == null || !this.hierarchy.contains(owner))
+            return mapped;
+
+        mapped = this.inheritedMethods.computeIfAbsent(new MemberKey(owner, name, descriptor), key -> {
+            String resolved = resolveMethod(key.owner, key.name, key.descriptor, new HashSet<>());
+            return resolved == null ? UNMAPPED : resolved;
+        });
+
+        return mapped == UNMAPPED ? null : mapped;
+    }
+
+    public @Nullable String mapField(String owner, String name, String descriptor) {
+        String mapped = mapDeclaredField(owner, name, descriptor);
+        if (mapped != null || this.hierarchy == null || !this.hierarchy.contains(owner))
+            return mapped;
+
+        mapped = this.inheritedFields.computeIfAbsent(new MemberKey(owner, name, descriptor), key -> {
+            String resolved = resolveField(key.owner, key.name, key.descriptor, new HashSet<>());
+            return resolved == null ? UNMAPPED : resolved;
+        });
+
+        return mapped == UNMAPPED ? null : mapped;
+    }
+
+    /**
+     * @return whether the method is declared by the owner or one of its supertypes in the jar rather than by a library
+     * class, which is always assumed without a hierarchy
+     */
+    public boolean isJarMethod(String owner, String name, String descriptor) {
+        if (this.hierarchy == null)
+            return true;
+
+        return this.jarMethods.computeIfAbsent(new MemberKey(owner, name, descriptor), key -> {
+            for (String type : this.hierarchy.getSupertypes(key.owner)) {
+                if (this.hierarchy.getMethodAccess(type, key.name, key.descriptor) != -1)
+                    return true;
+            }
+
+            return false;
+        });
+    }
+
+    /**
+     * @return whether the field is declared by the owner or one of its supertypes in the jar rather than by a library
+     * class, which is always assumed without a hierarchy
+     */
+    public boolean isJarField(String owner, String name, String descriptor) {
+        if (this.hierarchy == null)
+            return true;
+
+        return this.jarFields.computeIfAbsent(new MemberKey(owner, name, descriptor), key -> {
+            for (String type : this.hierarchy.getSupertypes(key.owner)) {
+                if (this.hierarchy.getFieldAccess(type, key.name, key.descriptor) != -1)
+                    return true;
+            }
+
+            return false;
+        });
+    }
+
+    private @Nullable String mapDeclaredMethod(String owner, String name, String descriptor) {
+        ClassEntry entry = this.classes.get(owner);
+        if (entry == null)
+            return null;
+
+        Map<String, String> descriptors = entry.methods.get(name);
+        return descriptors == null ? null : descriptors.get(descriptor);
+    }
+
+    private @Nullable String mapDeclaredField(String owner, String name, String descriptor) {
+        ClassEntry entry = this.classes.get(owner);
+        if (entry == null)
+            return null;
+
+        Map<String, String> descriptors = entry.fields.get(name);
+        return descriptors == null ? null : descriptors.get(descriptor);
+    }
+
+    /**
+     * Resolves a method the way the JVM does: the class itself, then its superclasses, then its interfaces. Private
+     * methods of supertypes are not inherited, and neither are constructors or static initializers.
+     */
+    private @Nullable String resolveMethod(String owner, String name, String descriptor, Set<String> visited) {
+        if (name.startsWith("<"))
+            return null;
+
+        String superName = owner;
+        while (superName != null && visited.add(superName)) {
+            int access = this.hierarchy.getMethodAccess(superName, name, descriptor);
+            if (access != -1) {
+                if (superName.equals(owner) || (access & Opcodes.ACC_PRIVATE) == 0)
+                    return mapDeclaredMethod(superName, name, descriptor);
+            }
+
+            superName = this.hierarchy.getSuperName(superName);
+        }
+
+        for (String type : this.hierarchy.getSupertypes(owner)) {
+            if (!this.hierarchy.isInterface(type))
+                continue;
+
+            int access = this.hierarchy.getMethodAccess(type, name, descriptor);
+            if (access != -1 && (access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC)) == 0) {
+                String mapped = mapDeclaredMethod(type, name, descriptor);
+                if (mapped != null)
+                    return mapped;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves a field the way the JVM does: the class itself, then its interfaces, then its superclass.
+     */
+    private @Nullable String resolveField(String owner, String name, String descriptor, Set<String> visited) {
+        if (!visited.add(owner))
+            return null;
+
+        int access = this.hierarchy.getFieldAccess(owner, name, descriptor);
+        if (access != -1)
+            return (access & Opcodes.ACC_PRIVATE) == 0 || visited.size() == 1 ? mapDeclaredField(owner, name, descriptor) : null;
+
+        for (String interfaceName : this.hierarchy.getInterfaces(owner)) {
+            String mapped = resolveField(interfaceName, name, descriptor, visited);
+            if (mapped != null)
+                return mapped;
+        }
+
+        String superName = this.hierarchy.getSuperName(owner);
+        return superName == null ? null : resolveField(superName, name, descriptor, visited);
+    }
+
+    private record MemberKey(String owner, String name, String descriptor) {
+    }
+
+    private record ClassEntry(ClassMapping mapping, String originalInternalName,
+                              Map<String, Map<String, String>> methods, Map<String, Map<String, String>> fields,
+                              long fingerprint) {
+    }
+}
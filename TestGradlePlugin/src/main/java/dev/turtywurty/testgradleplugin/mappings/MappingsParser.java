@@ -0,0 +1,269 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single pass parser for ProGuard style mappings files.
+ * <p>
+ * The file is memory mapped and scanned byte by byte; the only strings created are the names and signatures that end
+ * up in the resulting mappings. The accepted format is:
+ * <pre>
+ * original.Class -> obf:
+ * # {"fileName":"Class.java","id":"sourceFile"}
+ *     type field -> a
+ *     1:5:returnType method(paramType,paramType) -> b
+ *     1:5:returnType inlined(paramType):10:14 -> c
+ *     returnType abstractMethod(paramType) -> d
+ * </pre>
+ */
+final class MappingsParser {
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final SymbolPool pool;
+    private byte[] scratch = new byte[256];
+
+    private MappingsParser(ByteBuffer buffer, SymbolPool pool) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.pool = pool;
+    }
+
+    static List<ClassMapping> parse(Path file, SymbolPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Mappings file is too large: " + file);
+
+            ByteBuffer buffer = size == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappingsParser(buffer, pool).parse();
+        }
+    }
+
+    private List<ClassMapping> parse() {
+        List<ClassMapping> classes = new ArrayList<>();
+        ClassMapping current = null;
+
+        int position = 0;
+        while (position < this.limit) {
+            int lineStart = position;
+            int lineEnd = indexOf((byte) '\n', position, this.limit);
+            if (lineEnd < 0)
+                lineEnd = this.limit;
+
+            position = lineEnd + 1;
+
+            int start = skipWhitespace(lineStart, lineEnd);
+            int end = trimEnd(start, lineEnd);
+            if (start == end)
+                continue;
+
+            boolean member = start - lineStart >= 4 && isIndented(lineStart);
+            if (get(start) == '#') {
+                // Metadata for the current class, e.g. # {"fileName":"Foo.java","id":"sourceFile"}
+                // Indented metadata belongs to the previous member, which we don't keep
+                if (!member && current != null) {
+                    readMetadata(current, start + 1, end);
+                }
+
+                continue;
+            }
+
+            int arrow = indexOfArrow(start, end);
+            if (arrow < 0)
+                continue;
+
+            if (!member) {
+                // Class header: originalName -> obfuscatedName:
+                if (get(end - 1) != ':')
+                    continue;
+
+                current = new ClassMapping(string(start, trimEnd(start, arrow)), string(skipWhitespace(arrow + 4, end - 1), end - 1), this.pool);
+                classes.add(current);
+            } else if (current != null) {
+                readMember(current, start, arrow, end);
+            }
+        }
+
+        return classes;
+    }
+
+    private void readMember(ClassMapping current, int start, int arrow, int end) {
+        String obfuscatedName = string(skipWhitespace(arrow + 4, end), end);
+        int declarationEnd = trimEnd(start, arrow);
+
+        // Optional line numbers: start:end:
+        int startLine = 0, endLine = 0;
+        int signatureStart = start;
+        int firstColon = readNumberEnd(start, declarationEnd);
+        if (firstColon > start && firstColon < declarationEnd && get(firstColon) == ':') {
+            int secondColon = readNumberEnd(firstColon + 1, declarationEnd);
+            if (secondColon > firstColon + 1 && secondColon < declarationEnd && get(secondColon) == ':') {
+                startLine = parseInt(start, firstColon);
+                endLine = parseInt(firstColon + 1, secondColon);
+                signatureStart = secondColon + 1;
+            }
+        }
+
+        int openParen = indexOf((byte) '(', signatureStart, declarationEnd);
+        if (openParen >= 0) {
+            // Method mapping, dropping any trailing :originalStart:originalEnd of inlined methods
+            int closeParen = indexOf((byte) ')', openParen, declarationEnd);
+            int signatureEnd = closeParen < 0 ? declarationEnd : closeParen + 1;
+            current.addMethodMapping(new MethodMapping(startLine, endLine, string(signatureStart, signatureEnd), obfuscatedName, this.pool));
+            return;
+        }
+
+        // Field mapping: descriptor name -> obf
+        int space = indexOf((byte) ' ', start, declarationEnd);
+        if (space < 0)
+            return;
+
+        String descriptor = string(start, space);
+        String originalName = string(skipWhitespace(space + 1, declarationEnd), declarationEnd);
+        current.addFieldMapping(new FieldMapping(descriptor, originalName, obfuscatedName, this.pool));
+    }
+
+    /**
+     * Reads the "fileName" and "id" keys of a flat JSON object, e.g. {"fileName":"Foo.java","id":"sourceFile"}.
+     */
+    private void readMetadata(ClassMapping current, int start, int end) {
+        int position = skipWhitespace(start, end);
+        if (position >= end || get(position) != '{')
+            return;
+
+        position++;
+        while (position < end) {
+            int keyStart = indexOf((byte) '"', position, end);
+            if (keyStart < 0)
+                return;
+
+            int keyEnd = indexOf((byte) '"', keyStart + 1, end);
+            int colon = keyEnd < 0 ? -1 : indexOf((byte) ':', keyEnd + 1, end);
+            if (colon < 0)
+                return;
+
+            int valueStart = skipWhitespace(colon + 1, end);
+            int valueEnd;
+            if (valueStart < end && get(valueStart) == '"') {
+                valueStart++;
+                valueEnd = valueStart;
+                while (valueEnd < end && get(valueEnd) != '"') {
+                    valueEnd += get(valueEnd) == '\\' ? 2 : 1;
+                }
+
+                position = valueEnd + 1;
+            } else {
+                valueEnd = valueStart;
+                while (valueEnd < end && get(valueEnd) != ',' && get(valueEnd) != '}') {
+                    valueEnd++;
+                }
+
+                position = valueEnd;
+                valueEnd = trimEnd(valueStart, valueEnd);
+            }
+
+            valueEnd = Math.min(valueEnd, end);
+            if (matches(keyStart + 1, keyEnd, "fileName")) {
+                current.setFileName(this.pool.intern(string(valueStart, valueEnd)));
+            } else if (matches(keyStart + 1, keyEnd, "id")) {
+                current.setId(this.pool.intern(string(valueStart, valueEnd)));
+            }
+
+            position = indexOf((byte) ',', position, end);
+            if (position < 0)
+                return;
+        }
+    }
+
+    private byte get(int index) {
+        return this.buffer.get(index);
+    }
+
+    private boolean isIndented(int lineStart) {
+        return get(lineStart) == ' ' && get(lineStart + 1) == ' ' && get(lineStart + 2) == ' ' && get(lineStart + 3) == ' ';
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int index = from; index < to; index++) {
+            if (get(index) == value)
+                return index;
+        }
+
+        return -1;
+    }
+
+    private int indexOfArrow(int from, int to) {
+        for (int index = from; index + 4 <= to; index++) {
+            if (get(index) == ' ' && get(index + 1) == '-' && get(index + 2) == '>' && get(index + 3) == ' ')
+                return index;
+        }
+
+        return -1;
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && isWhitespace(get(from))) {
+            from++;
+        }
+
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && isWhitespace(get(to - 1))) {
+            to--;
+        }
+
+        return to;
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t' || value == '\r' || value == '\n';
+    }
+
+    private int readNumberEnd(int from, int to) {
+        while (from < to && get(from) >= '0' && get(from) <= '9') {
+            from++;
+        }
+
+        return from;
+    }
+
+    private int parseInt(int from, int to) {
+        int value = 0;
+        for (int index = from; index < to; index++) {
+            value = value * 10 + (get(index) - '0');
+        }
+
+        return value;
+    }
+
+    private boolean matches(int from, int to, String value) {
+        if (to - from != value.length())
+            return false;
+
+        for (int index = 0; index < value.length(); index++) {
+            if (get(from + index) != value.charAt(index))
+                return false;
+        }
+
+        return true;
+    }
+
+    private String string(int from, int to) {
+        int length = to - from;
+        if (length > this.scratch.length) {
+            this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+        }
+
+        this.buffer.get(from, this.scratch, 0, length);
+        return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
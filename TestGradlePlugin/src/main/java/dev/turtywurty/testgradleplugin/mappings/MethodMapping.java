@@ -1,17 +1,40 @@
 package dev.turtywurty.testgradleplugin.mappings;
 
+import org.jetbrains.annotations.Nullable;
+
 public class MethodMapping {
     private final int startLine;
     private final int endLine;
-    private final String signature;
+    private final String returnType;
+    private final String originalName;
+    private final String descriptor;
+    private final String asmDescriptor;
     private final String obfuscatedName;
     private String obfuscatedDescriptor;
 
     public MethodMapping(int startLine, int endLine, String signature, String obfuscatedName) {
+        this(startLine, endLine, signature, obfuscatedName, null);
+    }
+
+    /**
+     * @param signature      the mapped signature, e.g. {@code int getCount(java.lang.String)}
+     * @param obfuscatedName the obfuscated method name
+     * @param pool           the pool to intern the parsed parts of the signature into, may be null
+     */
+    public MethodMapping(int startLine, int endLine, String signature, String obfuscatedName, @Nullable SymbolPool pool) {
         this.startLine = startLine;
         this.endLine = endLine;
-        this.signature = signature;
-        this.obfuscatedName = obfuscatedName;
+        this.obfuscatedName = SymbolPool.intern(pool, obfuscatedName);
+
+        int paren = signature.indexOf('(');
+        int nameEnd = paren == -1 ? signature.length() : paren;
+        int space = signature.lastIndexOf(' ', nameEnd);
+
+        // Default to void if no return type is specified
+        this.returnType = SymbolPool.intern(pool, space == -1 ? "void" : signature.substring(0, space));
+        this.originalName = SymbolPool.intern(pool, signature.substring(space + 1, nameEnd));
+        this.descriptor = SymbolPool.intern(pool, paren == -1 ? "()" : signature.substring(paren));
+        this.asmDescriptor = SymbolPool.intern(pool, TypeDescriptors.toAsmMethodDescriptor(this.descriptor, this.returnType));
     }
 
     public int getStartLine() {
@@ -23,7 +46,7 @@ public class MethodMapping {
     }
 
     public String getSignature() {
-        return signature;
+        return returnType + " " + originalName + descriptor;
     }
 
     public String getObfuscatedName() {
@@ -35,24 +58,25 @@ public class MethodMapping {
     }
 
     public String getOriginalName() {
-        int idx = signature.indexOf('(');
-        if (idx == -1)
-            return signature;
-
-        return signature.substring(0, idx);
+        return originalName;
     }
 
+    /**
+     * @return the parameter list as written in the mappings, e.g. {@code (java.lang.String,int)}
+     */
     public String getDescriptor() {
-        int idx = signature.indexOf('(');
-        return (idx == -1) ? "" : signature.substring(idx);
+        return descriptor;
     }
 
-    public String getReturnType() {
-        int idx = signature.indexOf(')');
-        if (idx == -1 || idx + 1 >= signature.length())
-            return "V"; // Default to void if no return type is specified
+    /**
+     * @return the JVM descriptor using the original class names, e.g. {@code (Ljava/lang/String;I)V}
+     */
+    public String getAsmDescriptor() {
+        return asmDescriptor;
+    }
 
-        return signature.substring(idx + 1);
+    public String getReturnType() {
+        return returnType;
     }
 
     public void setObfuscatedDescriptor(String obfuscatedDesc) {
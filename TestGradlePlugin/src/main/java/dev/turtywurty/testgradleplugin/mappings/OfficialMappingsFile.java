@@ -1,11 +1,13 @@
 package dev.turtywurty.testgradleplugin.mappings;
 
-import java.io.BufferedReader;
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.objectweb.asm.commons.SimpleRemapper;
+
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -13,89 +15,94 @@ import java.util.concurrent.ConcurrentHashMap;
 public class OfficialMappingsFile {
     private static final Map<Path, CacheEntry> CACHE = new ConcurrentHashMap<>();
 
-    private record CacheEntry(List<ClassMapping> classes, long lastModified) {
+    // The pool is part of the entry, since mappings interned into the pool of an earlier run must not be mixed with
+    // mappings interned into the pool of this one
+    private record CacheEntry(List<ClassMapping> classes, long lastModified, SymbolPool pool) {
     }
 
     /**
      * Parses the given mappings file and returns a list of ClassMapping instances.
+     * <p>
+     * The parsed mappings are also written to a binary cache next to the file (see {@link MappingsCacheFile}), keyed
+     * by the SHA-1 of the mappings, so a fresh daemon can load them without parsing the text again.
+     * <p>
+     * All names and descriptors are interned into the given {@link SymbolPool}, and the obfuscated descriptors of
+     * every member are resolved before the mappings are returned.
      *
      * @param file the client mappings file
+     * @param pool the pool to intern the names and descriptors into, shared by the mappings files of one run
      * @return list of class mappings
      * @throws IOException if reading the file fails
      */
-    public static List<ClassMapping> parse(Path file) throws IOException {
+    public static List<ClassMapping> parse(Path file, SymbolPool pool) throws IOException {
         CacheEntry cached = CACHE.get(file);
-        if (cached != null && Files.exists(file) && Files.getLastModifiedTime(file).toMillis() == cached.lastModified) {
+        if (cached != null && cached.pool == pool && Files.exists(file) && Files.getLastModifiedTime(file).toMillis() == cached.lastModified) {
             return cached.classes;
         }
 
-        List<ClassMapping> classes = new ArrayList<>();
-        ClassMapping current = null;
-        try (BufferedReader reader = Files.newBufferedReader(file)) {
-            String rawLine;
-            while ((rawLine = reader.readLine()) != null) {
-                String line = rawLine.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
-
-                // Class header: originalName -> obfuscatedName:
-                if (line.endsWith(":") && line.contains(" -> ")) {
-                    String header = line.substring(0, line.length() - 1);
-                    String[] parts = header.split(" -> ", 2);
-                    current = new ClassMapping(parts[0], parts[1]);
-                    classes.add(current);
-                }
-                // Metadata JSON line starting with # {
-                else if (rawLine.trim().startsWith("# {") && current != null) {
-                    String json = rawLine.trim();
-                    try {
-                        // Strip leading '# ' and braces
-                        int start = json.indexOf('{') + 1;
-                        int end = json.lastIndexOf('}');
-                        String body = json.substring(start, end);
-                        String[] entries = body.split(",");
-                        for (String entry : entries) {
-                            String[] kv = entry.split(":", 2);
-                            String key = kv[0].trim().replace("\"", "");
-                            String value = kv[1].trim().replace("\"", "");
-                            if ("fileName".equals(key)) {
-                                current.setFileName(value);
-                            } else if ("id".equals(key)) {
-                                current.setId(value);
-                            }
-                        }
-                    } catch (Exception e) {
-                        // ignore malformed metadata
-                    }
-                }
-                // Member mappings
-                else if (current != null && rawLine.startsWith("    ")) {
-                    String mapping = rawLine.trim();
-                    // Method mapping: start:end:signature -> name
-                    if (mapping.matches("\\d+:\\d+:.+ -> .+")) {
-                        String[] parts = mapping.split(" -> ", 2);
-                        String obfName = parts[1].trim();
-                        String[] left = parts[0].split(":", 3);
-                        int startLine = Integer.parseInt(left[0]);
-                        int endLine = Integer.parseInt(left[1]);
-                        String signature = left[2];
-                        current.addMethodMapping(new MethodMapping(startLine, endLine, signature, obfName));
-                    }
-                    // Field mapping: descriptor name -> obf
-                    else if (mapping.contains(" -> ")) {
-                        String[] parts = mapping.split(" -> ", 2);
-                        String obfName = parts[1].trim();
-                        String[] decl = parts[0].trim().split(" ", 2);
-                        String descriptor = decl[0];
-                        String originalName = decl[1];
-                        current.addFieldMapping(new FieldMapping(descriptor, originalName, obfName));
-                    }
-                }
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String sha1 = readSha1(file);
+        Path cacheFile = file.resolveSibling(file.getFileName() + ".bin");
+
+        long start = System.nanoTime();
+        List<ClassMapping> classes = MappingsCacheFile.read(cacheFile, sha1, pool);
+        if (classes != null) {
+            System.out.println("Loaded " + file.getFileName() + " from cache in " + (System.nanoTime() - start) / 1_000_000 + "ms!");
+        } else {
+            classes = Collections.unmodifiableList(parseText(file, pool));
+            System.out.println("Parsed " + file.getFileName() + " in " + (System.nanoTime() - start) / 1_000_000 + "ms!");
+
+            try {
+                MappingsCacheFile.write(cacheFile, sha1, classes);
+            } catch (IOException exception) {
+                System.err.println("Failed to write mappings cache " + cacheFile + ": " + exception);
             }
         }
 
-        CACHE.put(file, new CacheEntry(Collections.unmodifiableList(classes), Files.getLastModifiedTime(file).toMillis()));
+        resolveObfuscatedDescriptors(classes, pool);
+
+        CACHE.put(file, new CacheEntry(classes, lastModified, pool));
         return classes;
     }
+
+    /**
+     * Reads the SHA-1 of the mappings from the {@code .sha1} file written by the download task, falling back to
+     * hashing the file itself.
+     */
+    private static String readSha1(Path file) throws IOException {
+        Path sha1File = file.resolveSibling(file.getFileName() + ".sha1");
+        if (Files.exists(sha1File)) {
+            String sha1 = Files.readString(sha1File).trim();
+            if (!sha1.isEmpty())
+                return sha1;
+        }
+
+        return HashingFunction.SHA1.hash(file);
+    }
+
+    private static List<ClassMapping> parseText(Path file, SymbolPool pool) throws IOException {
+        return MappingsParser.parse(file, pool);
+    }
+
+    /**
+     * Maps the original class names in every member descriptor back to their obfuscated names, which is what the
+     * remapper sees in the bytecode.
+     */
+    private static void resolveObfuscatedDescriptors(List<ClassMapping> classes, SymbolPool pool) {
+        Map<String, String> originalToObfuscated = new HashMap<>(classes.size() * 2);
+        for (ClassMapping classMapping : classes) {
+            originalToObfuscated.putIfAbsent(classMapping.getOriginalInternalName(), classMapping.getObfuscatedName());
+        }
+
+        var nameRemapper = new SimpleRemapper(originalToObfuscated);
+        for (ClassMapping classMapping : classes) {
+            for (MethodMapping methodMapping : classMapping.getMethods()) {
+                methodMapping.setObfuscatedDescriptor(pool.intern(nameRemapper.mapMethodDesc(methodMapping.getAsmDescriptor())));
+            }
+
+            for (FieldMapping fieldMapping : classMapping.getFields()) {
+                fieldMapping.setObfuscatedDescriptor(pool.intern(nameRemapper.mapDesc(fieldMapping.getAsmDescriptor())));
+            }
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import com.google.gson.JsonParseException;
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records, for every remapped class, the hash of its obfuscated bytes and of the mapping entries it depends on,
+ * along with the file it was remapped to. A later run can then skip every class whose hashes are unchanged.
+ * <p>
+ * The mapping entries a class depends on are those of every class named in its constant pool: its own entry, its
+ * supertypes, and every class it references in a descriptor, a signature or an instruction, along with all of their
+ * supertypes when the mappings resolve inherited members. If none of those entries changed, then neither did the
+ * remapped class.
+ */
+public final class RemapManifest {
+    /**
+     * Bump this whenever the remapper output changes for the same input, so old manifests are thrown away.
+     */
+    private static final int VERSION = 4;
+
+    private final Map<String, Entry> entries;
+
+    private RemapManifest(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    public static RemapManifest empty() {
+        return new RemapManifest(new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @param output the remapped directory or jar
+     * @return the manifest file that belongs to it
+     */
+    public static Path pathFor(Path output) {
+        return output.resolveSibling(output.getFileName() + ".manifest.json");
+    }
+
+    /**
+     * @param file the manifest file
+     * @return the manifest, or an empty one if the file is missing, unreadable or from another version
+     */
+    public static RemapManifest load(Path file) {
+        if (Files.notExists(file))
+            return empty();
+
+        try {
+            Data data = TestGradlePlugin.GSON.fromJson(Files.readString(file), Data.class);
+            if (data == null || data.version() != VERSION || data.entries() == null)
+                return empty();
+
+            return new RemapManifest(new ConcurrentHashMap<>(data.entries()));
+        } catch (IOException | JsonParseException exception) {
+            System.err.println("Ignoring unreadable remap manifest " + file + ": " + exception);
+            return empty();
+        }
+    }
+
+    public void save(Path file) {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(tempFile, TestGradlePlugin.GSON.toJson(new Data(VERSION, new TreeMap<>(this.entries))));
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to write remap manifest " + file, exception);
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public @Nullable Entry get(String input) {
+        return this.entries.get(input);
+    }
+
+    public void put(String input, Entry entry) {
+        this.entries.put(input, entry);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Hashes a class against the given mappings.
+     *
+     * @param classBytes the obfuscated class
+     * @param mappings   the mappings the class will be remapped with
+     * @return the entry for the class, with its output left null
+     */
+    public static Entry hash(byte[] classBytes, MappingsIndex mappings) {
+        return new Entry(HashingFunction.SHA1.hash(classBytes), mappingsHash(classBytes, mappings), null);
+    }
+
+    /**
+     * Hashes the fingerprints of every mapped class named in the constant pool of the given class. Any UTF-8
+     * constant that is a mapped class name, or that contains one as an {@code L...;} type, counts as a reference,
+     * which may pull in a few unrelated entries but never misses a real one.
+     */
+    static String mappingsHash(byte[] classBytes, MappingsIndex mappings) {
+        var reader = new ClassReader(classBytes);
+        Set<String> names = new TreeSet<>();
+        names.add(reader.getClassName());
+        for (int index = 1; index < reader.getItemCount(); index++) {
+            int offset = reader.getItem(index);
+            // Long and double constants take two slots, the second one has no offset
+            if (offset == 0 || classBytes[offset - 1] != 1)
+                continue;
+
+            String value = new String(classBytes, offset + 2, reader.readUnsignedShort(offset), StandardCharsets.UTF_8);
+            names.add(value);
+
+            int start = value.indexOf('L');
+            while (start >= 0) {
+                int end = value.indexOf(';', start);
+                if (end < 0)
+                    break;
+
+                names.add(value.substring(start + 1, end));
+                start = value.indexOf('L', start + 1);
+            }
+        }
+
+        // Members referenced through a subclass resolve to the mappings of a supertype, so those count too
+        ClassHierarchy hierarchy = mappings.getHierarchy();
+        if (hierarchy != null) {
+            Set<String> supertypes = new HashSet<>();
+            for (String name : names) {
+                hierarchy.collectSupertypes(name, supertypes);
+            }
+
+            names.addAll(supertypes);
+        }
+
+        MessageDigest digest = HashingFunction.SHA1.getMessageDigest();
+        byte[] fingerprint = new byte[Long.BYTES];
+        for (String name : names) {
+            long value = mappings.fingerprint(name);
+            if (value == 0)
+                continue;
+
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            for (int index = 0; index < Long.BYTES; index++) {
+                fingerprint[index] = (byte) (value >>> (index * 8));
+            }
+
+            digest.update(fingerprint);
+        }
+
+        return HashingFunction.toHexString(digest.digest());
+    }
+
+    /**
+     * @param input    the SHA-1 of the obfuscated class
+     * @param mappings the hash of the mapping entries the class depends on
+     * @param output   the path of the remapped class in the output directory or jar
+     */
+    public record Entry(String input, String mappings, @Nullable String output) {
+        public Entry withOutput(String output) {
+            return new Entry(this.input, this.mappings, output);
+        }
+
+        public boolean isSameAs(@Nullable Entry other) {
+            return other != null && this.input.equals(other.input) && this.mappings.equals(other.mappings) && other.output != null;
+        }
+    }
+
+    private record Data(int version, Map<String, Entry> entries) {
+    }
+}
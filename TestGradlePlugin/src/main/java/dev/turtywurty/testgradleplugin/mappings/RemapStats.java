@@ -0,0 +1,213 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for a remap run. They are {@link LongAdder}s, so every worker thread can bump them on every member
+ * reference without contending on a shared field.
+ * <p>
+ * Misses only count references to members declared in the jar by mapped classes that had no mapping, references to
+ * members of the JDK or other libraries are expected to stay as they are.
+ */
+public final class RemapStats {
+    /**
+     * For callers that do not track anything, it counts nothing.
+     */
+    public static final RemapStats NONE = new RemapStats(false);
+
+    private static final int HISTORY_SIZE = 50;
+
+    private final LongAdder classes = new LongAdder();
+    private final LongAdder reusedClasses = new LongAdder();
+    private final LongAdder methods = new LongAdder();
+    private final LongAdder fields = new LongAdder();
+    private final LongAdder methodMisses = new LongAdder();
+    private final LongAdder fieldMisses = new LongAdder();
+    private final LongAdder mergedClasses = new LongAdder();
+    private final LongAdder initializerConflicts = new LongAdder();
+    private final long start = System.nanoTime();
+    private final boolean enabled;
+
+    public RemapStats() {
+        this(true);
+    }
+
+    private RemapStats(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void classRemapped() {
+        if (this.enabled) {
+            this.classes.increment();
+        }
+    }
+
+    public void classReused() {
+        if (this.enabled) {
+            this.reusedClasses.increment();
+        }
+    }
+
+    public void methodRemapped() {
+        if (this.enabled) {
+            this.methods.increment();
+        }
+    }
+
+    public void fieldRemapped() {
+        if (this.enabled) {
+            this.fields.increment();
+        }
+    }
+
+    public void methodMissed() {
+        if (this.enabled) {
+            this.methodMisses.increment();
+        }
+    }
+
+    public void fieldMissed() {
+        if (this.enabled) {
+            this.fieldMisses.increment();
+        }
+    }
+
+    public void classMerged() {
+        if (this.enabled) {
+            this.mergedClasses.increment();
+        }
+    }
+
+    public void initializerConflict() {
+        if (this.enabled) {
+            this.initializerConflicts.increment();
+        }
+    }
+
+    /**
+     * @return whether anything is counted, callers can skip work that only feeds the counters otherwise
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public long getClasses() {
+        return this.classes.sum();
+    }
+
+    public long getReusedClasses() {
+        return this.reusedClasses.sum();
+    }
+
+    public long getMergedClasses() {
+        return this.mergedClasses.sum();
+    }
+
+    public long getInitializerConflicts() {
+        return this.initializerConflicts.sum();
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - this.start) / 1_000_000;
+    }
+
+    /**
+     * Prints the counters every given number of seconds until the returned handle is closed.
+     *
+     * @param label           what is being remapped, e.g. "client"
+     * @param intervalSeconds the number of seconds between two progress lines
+     * @return the handle that stops the progress output
+     */
+    public Progress startProgress(String label, int intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "remap-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleAtFixedRate(() -> System.out.println("Remapping " + label + ": " + this),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler::shutdownNow;
+    }
+
+    public interface Progress extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public JsonObject toJson() {
+        long elapsed = getElapsedMillis();
+        var json = new JsonObject();
+        json.addProperty("classes", this.classes.sum());
+        json.addProperty("reusedClasses", this.reusedClasses.sum());
+        json.addProperty("methods", this.methods.sum());
+        json.addProperty("fields", this.fields.sum());
+        json.addProperty("methodMisses", this.methodMisses.sum());
+        json.addProperty("fieldMisses", this.fieldMisses.sum());
+        json.addProperty("mergedClasses", this.mergedClasses.sum());
+        json.addProperty("initializerConflicts", this.initializerConflicts.sum());
+        json.addProperty("durationMs", elapsed);
+        json.addProperty("classesPerSecond", elapsed == 0 ? 0 : this.classes.sum() * 1000 / elapsed);
+        return json;
+    }
+
+    /**
+     * Appends the counters of this run to a JSON array of the most recent runs, so throughput can be compared
+     * between builds.
+     *
+     * @param file    the summary file
+     * @param details extra properties describing the run, added to the entry as they are
+     */
+    public void writeSummary(Path file, JsonObject details) {
+        JsonObject run = details.deepCopy();
+        run.addProperty("timestamp", Instant.now().toString());
+        toJson().entrySet().forEach(entry -> run.add(entry.getKey(), entry.getValue()));
+
+        var history = new JsonArray();
+        try {
+            if (Files.exists(file)) {
+                JsonArray previous = TestGradlePlugin.GSON.fromJson(Files.readString(file), JsonArray.class);
+                if (previous != null) {
+                    for (int index = Math.max(0, previous.size() - HISTORY_SIZE + 1); index < previous.size(); index++) {
+                        history.add(previous.get(index));
+                    }
+                }
+            }
+        } catch (IOException | JsonParseException exception) {
+            System.err.println("Discarding unreadable remap summary " + file + ": " + exception);
+        }
+
+        history.add(run);
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(tempFile, TestGradlePlugin.GSON.toJson(history));
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            System.err.println("Failed to write remap summary " + file + ": " + exception);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long elapsed = getElapsedMillis();
+        return this.classes.sum() + " classes remapped, " + this.reusedClasses.sum() + " reused, "
+                + this.methods.sum() + " methods, " + this.fields.sum() + " fields, "
+                + this.methodMisses.sum() + " method misses, " + this.fieldMisses.sum() + " field misses, "
+                + this.mergedClasses.sum() + " classes merged (" + this.initializerConflicts.sum() + " initializer conflicts) in "
+                + elapsed + "ms (" + (elapsed == 0 ? 0 : this.classes.sum() * 1000 / elapsed) + " classes/s)";
+    }
+}
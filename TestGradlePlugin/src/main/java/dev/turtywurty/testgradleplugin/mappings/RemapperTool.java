@@ -9,7 +9,7 @@ import org.objectweb.asm.commons.Remapper;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
 
 public class RemapperTool {
 
@@ -18,12 +18,12 @@ public class RemapperTool {
      *
      * @param filePath  the input .class file to remap
      * @param outputDir the directory where the remapped class should be written
-     * @param mappings  your ClassMapping list
+     * @param mappings  the index built from your ClassMapping list
      * @return the Path of the newly‐written remapped .class
      */
     public static Path remapClass(@NotNull Path filePath,
                                   @NotNull Path outputDir,
-                                  List<ClassMapping> mappings) {
+                                  MappingsIndex mappings) {
         if (mappings.isEmpty()) {
             throw new IllegalArgumentException("Mappings list cannot be empty");
         }
@@ -38,27 +38,25 @@ public class RemapperTool {
             throw new IllegalStateException("Failed to read class file: " + filePath, e);
         }
 
-        var cr = new ClassReader(classBytes);
-        var cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
-        var remapper = new MappingsRemapper(mappings);
-        var cv = new ClassRemapper(cw, remapper);
-        cr.accept(cv, ClassReader.EXPAND_FRAMES);
-        byte[] remappedBytes = cw.toByteArray();
-
-        String internalObfName = cr.getClassName();
-        ClassMapping mapping = mappings.stream()
-                .filter(m -> m.getObfuscatedName().equals(internalObfName))
-                .findFirst()
-                .orElseThrow(() -> new IllegalStateException(
-                        "No ClassMapping for " + internalObfName));
+        return writeClass(outputDir, remapClass(classBytes, mappings));
+    }
 
-        String originalDotName = mapping.getOriginalName();
-        String originalInternal = originalDotName.replace('.', '/');
-        Path target = outputDir.resolve(originalInternal + ".class");
+    /**
+     * Write a remapped class in its correct package path.
+     *
+     * @param outputDir the directory where the remapped class should be written
+     * @param remapped  the remapped class
+     * @return the Path of the newly‐written remapped .class
+     */
+    public static Path writeClass(@NotNull Path outputDir, RemappedClass remapped) {
+        Path target = outputDir.resolve(remapped.name() + ".class");
+        Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
 
         try {
             Files.createDirectories(target.getParent());
-            Files.write(target, remappedBytes);
+            // replaced rather than written into, the merged directory may hard link to the previous file
+            Files.write(tempFile, remapped.bytes());
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             throw new IllegalStateException("Failed to write remapped class to " + target, e);
         }
@@ -66,47 +64,92 @@ public class RemapperTool {
         return target;
     }
 
+    /**
+     * Remap the bytes of one class.
+     *
+     * @param classBytes the obfuscated class
+     * @param mappings   the index built from your ClassMapping list
+     * @return the original internal name of the class and its remapped bytes
+     */
+    public static RemappedClass remapClass(byte[] classBytes, MappingsIndex mappings) {
+        return remapClass(classBytes, mappings, RemapStats.NONE);
+    }
+
+    /**
+     * Remap the bytes of one class, counting the remapped members.
+     *
+     * @param classBytes the obfuscated class
+     * @param mappings   the index built from your ClassMapping list
+     * @param stats      the counters of the current run
+     * @return the original internal name of the class and its remapped bytes
+     */
+    public static RemappedClass remapClass(byte[] classBytes, MappingsIndex mappings, RemapStats stats) {
+        var cr = new ClassReader(classBytes);
+        var cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+        var remapper = new MappingsRemapper(mappings, stats);
+        var cv = new ClassRemapper(cw, remapper);
+        cr.accept(cv, ClassReader.EXPAND_FRAMES);
+
+        String internalObfName = cr.getClassName();
+        String originalInternal = mappings.mapClass(internalObfName);
+        if (originalInternal == null)
+            throw new IllegalStateException("No ClassMapping for " + internalObfName);
+
+        stats.classRemapped();
+        return new RemappedClass(originalInternal, cw.toByteArray());
+    }
+
+    public record RemappedClass(String name, byte[] bytes) {
+    }
+
     public static class MappingsRemapper extends Remapper {
-        private final List<ClassMapping> mappings;
+        private final MappingsIndex mappings;
+        private final RemapStats stats;
 
-        public MappingsRemapper(List<ClassMapping> mappings) {
+        public MappingsRemapper(MappingsIndex mappings) {
+            this(mappings, RemapStats.NONE);
+        }
+
+        public MappingsRemapper(MappingsIndex mappings, RemapStats stats) {
             this.mappings = mappings;
+            this.stats = stats;
         }
 
         @Override
         public String map(String internalName) {
-            return mappings.stream()
-                    .filter(m -> m.getObfuscatedName().equals(internalName))
-                    .map(ClassMapping::getOriginalName)
-                    .map(dotName -> dotName.replace('.', '/'))
-                    .findFirst()
-                    .orElse(super.map(internalName));
+            String mapped = mappings.mapClass(internalName);
+            return mapped != null ? mapped : super.map(internalName);
         }
 
         @Override
         public String mapMethodName(String owner, String name, String descriptor) {
-            System.out.println("Mapping method: " + owner + "." + name + descriptor);
-
-            return mappings.stream()
-                    .filter(cm -> cm.getObfuscatedName().equals(owner))
-                    .flatMap(cm -> cm.getMethods().stream())
-                    .filter(mm -> mm.getObfuscatedName().equals(name)
-                            && mm.getObfuscatedDescriptor().equals(descriptor))
-                    .map(MethodMapping::getOriginalName)
-                    .findFirst()
-                    .orElse(super.mapMethodName(owner, name, descriptor));
+            String mapped = mappings.mapMethod(owner, name, descriptor);
+            if (mapped != null) {
+                stats.methodRemapped();
+                return mapped;
+            }
+
+            // only worked out when misses are counted, and memoized by the index after that
+            if (stats.isEnabled() && !name.startsWith("<") && mappings.mapClass(owner) != null && mappings.isJarMethod(owner, name, descriptor)) {
+                stats.methodMissed();
+            }
+
+            return super.mapMethodName(owner, name, descriptor);
         }
 
         @Override
         public String mapFieldName(String owner, String name, String descriptor) {
-            return mappings.stream()
-                    .filter(cm -> cm.getObfuscatedName().equals(owner))
-                    .flatMap(cm -> cm.getFields().stream())
-                    .filter(fm -> fm.getObfuscatedName().equals(name)
-                            && fm.getObfuscatedDescriptor().equals(descriptor))
-                    .map(FieldMapping::getOriginalName)
-                    .findFirst()
-                    .orElse(super.mapFieldName(owner, name, descriptor));
+            String mapped = mappings.mapField(owner, name, descriptor);
+            if (mapped != null) {
+                stats.fieldRemapped();
+                return mapped;
+            }
+
+            if (stats.isEnabled() && mappings.mapClass(owner) != null && mappings.isJarField(owner, name, descriptor)) {
+                stats.fieldMissed();
+            }
+
+            return super.mapFieldName(owner, name, descriptor);
         }
     }
 }
@@ -0,0 +1,37 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of canonical strings for class names, member names and descriptors.
+ * <p>
+ * Mappings repeat the same few thousand names and descriptors hundreds of thousands of times, so every string that
+ * ends up in a {@link ClassMapping}, {@link MethodMapping} or {@link FieldMapping} is passed through a pool and only
+ * one copy of each distinct value is kept alive.
+ */
+public final class SymbolPool {
+    private final Map<String, String> symbols = new ConcurrentHashMap<>();
+
+    /**
+     * @param value the string to intern
+     * @return the canonical instance equal to {@code value}, or null if {@code value} is null
+     */
+    public String intern(@Nullable String value) {
+        if (value == null)
+            return null;
+
+        String existing = this.symbols.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    public int size() {
+        return this.symbols.size();
+    }
+
+    static String intern(@Nullable SymbolPool pool, @Nullable String value) {
+        return pool == null ? value : pool.intern(value);
+    }
+}
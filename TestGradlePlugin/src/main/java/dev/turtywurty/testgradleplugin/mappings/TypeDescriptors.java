@@ -0,0 +1,65 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+/**
+ * Converts the Java source style types used by the mappings (e.g. {@code java.lang.String[]}) into JVM descriptors.
+ */
+final class TypeDescriptors {
+    private TypeDescriptors() {
+    }
+
+    /**
+     * @param humanParams the parameter list, including the parentheses, e.g. {@code (int,java.lang.String)}
+     * @param humanReturn the return type, e.g. {@code void}
+     * @return the method descriptor, e.g. {@code (ILjava/lang/String;)V}
+     */
+    static String toAsmMethodDescriptor(String humanParams, String humanReturn) {
+        var builder = new StringBuilder(humanParams.length() + 8).append('(');
+
+        int start = humanParams.startsWith("(") ? 1 : 0;
+        int end = humanParams.endsWith(")") ? humanParams.length() - 1 : humanParams.length();
+        while (start < end) {
+            int comma = humanParams.indexOf(',', start);
+            if (comma < 0 || comma > end)
+                comma = end;
+
+            String param = humanParams.substring(start, comma).trim();
+            if (!param.isEmpty()) {
+                appendTypeDescriptor(builder, param);
+            }
+
+            start = comma + 1;
+        }
+
+        builder.append(')');
+        appendTypeDescriptor(builder, humanReturn);
+        return builder.toString();
+    }
+
+    static String toAsmTypeDescriptor(String human) {
+        var builder = new StringBuilder(human.length() + 2);
+        appendTypeDescriptor(builder, human);
+        return builder.toString();
+    }
+
+    private static void appendTypeDescriptor(StringBuilder builder, String human) {
+        int end = human.length();
+        while (end >= 2 && human.charAt(end - 2) == '[' && human.charAt(end - 1) == ']') {
+            builder.append('[');
+            end -= 2;
+        }
+
+        String type = end == human.length() ? human : human.substring(0, end);
+        switch (type) {
+            case "byte" -> builder.append('B');
+            case "char" -> builder.append('C');
+            case "double" -> builder.append('D');
+            case "float" -> builder.append('F');
+            case "int" -> builder.append('I');
+            case "long" -> builder.append('J');
+            case "short" -> builder.append('S');
+            case "boolean" -> builder.append('Z');
+            case "void" -> builder.append('V');
+            default -> builder.append('L').append(type.replace('.', '/')).append(';');
+        }
+    }
+}
@@ -3,15 +3,16 @@ package dev.turtywurty.testgradleplugin.piston;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,7 +24,6 @@ public class PistonMeta {
     public PistonMeta(Path metaPath) {
         try {
             String json = Files.readString(metaPath);
-            System.out.println("Piston meta json: " + json);
             JsonObject object = TestGradlePlugin.GSON.fromJson(json, JsonObject.class);
             if (object.has("latest")) {
                 JsonObject latest = object.getAsJsonObject("latest");
@@ -43,18 +43,59 @@ public class PistonMeta {
         }
     }
 
-    public static void download(Path path) {
-        try (InputStream stream = new URI(META_URL).toURL().openStream()) {
-            String json = new String(stream.readAllBytes());
+    /**
+     * Refreshes the cached manifest. Within the given age of the last check nothing is sent at all, after that the
+     * manifest is revalidated with its {@code ETag} and {@code Last-Modified} and only downloaded again if it changed.
+     *
+     * @param engine the engine to download with
+     * @param path   the cached manifest
+     * @param maxAge how long a checked manifest is trusted without asking the server, zero to always revalidate
+     * @return whether a new manifest was downloaded
+     */
+    public static boolean download(DownloadEngine engine, Path path, Duration maxAge) {
+        Path statePath = path.resolveSibling(path.getFileName() + ".cache.json");
+        CacheState state = Files.exists(path) ? readState(statePath) : null;
+        long now = System.currentTimeMillis();
+        if (state != null && now - state.checkedAt() < maxAge.toMillis()) {
+            System.out.println("Piston meta checked " + (now - state.checkedAt()) / 1000 + "s ago, using cached " + path);
+            return false;
+        }
+
+        DownloadEngine.Fetched fetched = state == null ? engine.fetchIfChanged(META_URL, null, null)
+                : engine.fetchIfChanged(META_URL, state.etag(), state.lastModified());
+        try {
             Files.createDirectories(path.getParent());
-            Files.writeString(path, json);
+            if (fetched == null) {
+                writeState(statePath, new CacheState(state.etag(), state.lastModified(), now));
+                System.out.println("Piston meta not modified: " + path);
+                return false;
+            }
+
+            Path tempFile = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tempFile, fetched.body());
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeState(statePath, new CacheState(fetched.etag(), fetched.lastModified(), now));
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to write piston meta!", exception);
+        }
 
-            System.out.println("Piston meta downloaded to: " + path);
-        } catch (IOException | URISyntaxException exception) {
-            throw new RuntimeException("Failed to download piston meta!", exception);
+        System.out.println("Piston meta downloaded to: " + path);
+        return true;
+    }
+
+    private static @Nullable CacheState readState(Path statePath) {
+        try {
+            return Files.exists(statePath) ? TestGradlePlugin.GSON.fromJson(Files.readString(statePath), CacheState.class) : null;
+        } catch (IOException | JsonParseException exception) {
+            System.err.println("Ignoring unreadable piston meta cache state " + statePath + ": " + exception);
+            return null;
         }
     }
 
+    private static void writeState(Path statePath, CacheState state) throws IOException {
+        Files.writeString(statePath, TestGradlePlugin.GSON.toJson(state));
+    }
+
     public PistonMetaVersion findVersion(String version) {
         for (PistonMetaVersion metaVersion : this.versions) {
             if (metaVersion.id().equals(version)) {
@@ -72,4 +113,12 @@ public class PistonMeta {
     public List<PistonMetaVersion> versions() {
         return this.versions;
     }
+
+    /**
+     * @param etag         the {@code ETag} of the cached manifest, if the server sent one
+     * @param lastModified the {@code Last-Modified} of the cached manifest, if the server sent one
+     * @param checkedAt    when the server was last asked, in epoch milliseconds
+     */
+    private record CacheState(@Nullable String etag, @Nullable String lastModified, long checkedAt) {
+    }
 }
@@ -1,14 +1,12 @@
 package dev.turtywurty.testgradleplugin.piston.version;
 
 import com.google.gson.JsonObject;
+import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 public record Download(String sha1, long size, String url) {
@@ -24,23 +22,29 @@ public record Download(String sha1, long size, String url) {
     }
 
     public Path downloadToPath(Path path, String fileName) {
+        return downloadToPath(DownloadEngine.getDefault(), path, fileName, null);
+    }
+
+    /**
+     * Downloads the file into the given directory, verifying its size and SHA-1 on the way.
+     *
+     * @param engine    the engine to download with
+     * @param path      the directory to download into
+     * @param fileName  the name of the file
+     * @param hashCache the cache to record the verified hash in, if any
+     * @return the downloaded file
+     * @see DownloadEngine#download(String, Path, long, String)
+     */
+    public Path downloadToPath(DownloadEngine engine, Path path, String fileName, @Nullable FileHashCache hashCache) {
         Path resolved = path.toAbsolutePath().resolve(fileName);
         System.out.println("Downloading " + this.url + " to " + resolved);
 
-        try {
-            Files.createDirectories(resolved.getParent());
-            Files.deleteIfExists(resolved);
-        } catch (IOException exception) {
-            throw new RuntimeException("Failed to create directories for " + resolved + "!", exception);
-        }
-
-        try (InputStream inputStream = new URI(this.url).toURL().openStream()) {
-            Files.write(resolved, inputStream.readAllBytes());
-        } catch (IOException | URISyntaxException exception) {
-            throw new RuntimeException("Failed to download " + this.url + "!", exception);
+        String actualHash = engine.download(this.url, resolved, this.size > 0 ? this.size : -1, this.sha1);
+        if (hashCache != null) {
+            hashCache.record(resolved, HashingFunction.SHA1, actualHash);
         }
 
         System.out.println("Downloaded " + this.url + " to " + resolved + "!");
         return resolved;
     }
-}
\ No newline at end of file
+}
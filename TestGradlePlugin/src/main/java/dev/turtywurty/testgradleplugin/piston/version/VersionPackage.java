@@ -1,16 +1,18 @@
 package dev.turtywurty.testgradleplugin.piston.version;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.piston.PistonMetaVersion;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 public record VersionPackage(Arguments arguments, AssetIndex assetIndex, String assets, int complianceLevel,
@@ -55,27 +57,70 @@ public record VersionPackage(Arguments arguments, AssetIndex assetIndex, String
                 libraries, logging, mainClass, minimumLauncherVersion, releaseTime, time, type);
     }
 
-    public static VersionPackage fromPath(Path path) {
-        Path versionJsonPath = path.toAbsolutePath();
-        VersionPackage versionPackage;
-        try {
-            String jsonStr = Files.readString(versionJsonPath);
-            JsonObject json = TestGradlePlugin.GSON.fromJson(jsonStr, JsonObject.class);
-            versionPackage = VersionPackage.fromJson(json);
-        } catch (IOException exception) {
-            throw new RuntimeException("Failed to download client!", exception);
+    /**
+     * Reads a version json straight from the stream. Only the small nested objects are parsed as json trees, the
+     * libraries one at a time, and anything unknown is skipped.
+     */
+    public static VersionPackage read(JsonReader reader) throws IOException {
+        JsonArray gameJson = null, jvmJson = null;
+        AssetIndex assetIndex = null;
+        String assets = null, id = null, mainClass = null, releaseTime = null, time = null, type = null;
+        int complianceLevel = 0, minimumLauncherVersion = 0;
+        Downloads downloads = null;
+        JavaVersion javaVersion = null;
+        List<Library> libraries = new ArrayList<>();
+        Logging logging = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "arguments" -> gameJson = JsonParser.parseReader(reader).getAsJsonObject().getAsJsonArray("game");
+                // Matches fromJson, which looks for the jvm arguments next to the arguments object rather than in it
+                case "jvm" -> jvmJson = JsonParser.parseReader(reader).getAsJsonArray();
+                case "assetIndex" -> assetIndex = AssetIndex.fromJson(JsonParser.parseReader(reader).getAsJsonObject());
+                case "assets" -> assets = reader.nextString();
+                case "complianceLevel" -> complianceLevel = reader.nextInt();
+                case "downloads" -> downloads = Downloads.fromJson(JsonParser.parseReader(reader).getAsJsonObject());
+                case "id" -> id = reader.nextString();
+                case "javaVersion" -> javaVersion = JavaVersion.fromJson(JsonParser.parseReader(reader).getAsJsonObject());
+                case "libraries" -> {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        JsonElement library = JsonParser.parseReader(reader);
+                        if (library.isJsonObject()) {
+                            libraries.add(Library.fromJson(library.getAsJsonObject()));
+                        }
+                    }
+
+                    reader.endArray();
+                }
+                case "logging" -> logging = Logging.fromJson(JsonParser.parseReader(reader).getAsJsonObject());
+                case "mainClass" -> mainClass = reader.nextString();
+                case "minimumLauncherVersion" -> minimumLauncherVersion = reader.nextInt();
+                case "releaseTime" -> releaseTime = reader.nextString();
+                case "time" -> time = reader.nextString();
+                case "type" -> type = reader.nextString();
+                default -> reader.skipValue();
+            }
         }
 
-        return versionPackage;
+        reader.endObject();
+
+        var arguments = new Arguments(CLIArguments.fromJsonArray(gameJson), CLIArguments.fromJsonArray(jvmJson));
+        return new VersionPackage(arguments, assetIndex, assets, complianceLevel, downloads, id, javaVersion,
+                libraries, logging, mainClass, minimumLauncherVersion, releaseTime, time, type);
     }
 
-    public static void download(PistonMetaVersion metaVersion, Path outputFile) {
-        String url = metaVersion.url();
-        try (InputStream inputStream = new URI(url).toURL().openStream()) {
-            Files.createDirectories(Files.isDirectory(outputFile) ? outputFile : outputFile.getParent());
-            Files.write(outputFile, inputStream.readAllBytes());
-        } catch (IOException | URISyntaxException exception) {
-            throw new RuntimeException("Failed to download version!", exception);
+    public static VersionPackage fromPath(Path path) {
+        Path versionJsonPath = path.toAbsolutePath();
+        try (var reader = new JsonReader(Files.newBufferedReader(versionJsonPath, StandardCharsets.UTF_8))) {
+            return VersionPackage.read(reader);
+        } catch (IOException | RuntimeException exception) {
+            throw new RuntimeException("Failed to read version package " + versionJsonPath + "!", exception);
         }
     }
+
+    public static void download(DownloadEngine engine, PistonMetaVersion metaVersion, Path outputFile) {
+        engine.download(metaVersion.url(), outputFile, -1, metaVersion.sha1());
+    }
 }
@@ -1,26 +1,33 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.OperatingSystem;
-import dev.turtywurty.testgradleplugin.TestGradlePlugin;
 import dev.turtywurty.testgradleplugin.asset.AssetIndexHash;
 import dev.turtywurty.testgradleplugin.asset.AssetObject;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
+import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.util.ContentStore;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.*;
+import org.gradle.api.tasks.options.Option;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 
 @CacheableTask
 public abstract class DownloadAssetsTask extends DefaultTestGradleTask {
@@ -34,6 +41,8 @@ public abstract class DownloadAssetsTask extends DefaultTestGradleTask {
     public DownloadAssetsTask() {
         getAssetsUrl().convention("https://resources.download.minecraft.net/");
         getConcurrentConnections().convention(8);
+        getVerifyHashes().convention(false);
+        getStoreReport().convention(false);
 
         Path cacheDir = getCacheDir();
         Path versionPath = cacheDir.resolve(getMinecraftVersion());
@@ -49,6 +58,14 @@ public abstract class DownloadAssetsTask extends DefaultTestGradleTask {
     @Optional
     public abstract Property<Integer> getConcurrentConnections();
 
+    @Internal
+    @Option(option = "verify-hashes", description = "Re-hashes every asset instead of trusting the file hash cache.")
+    public abstract Property<Boolean> getVerifyHashes();
+
+    @Internal
+    @Option(option = "store-report", description = "Walks the whole content store to report how much space it saves.")
+    public abstract Property<Boolean> getStoreReport();
+
     @TaskAction
     public void downloadAssets() {
         System.out.println("Downloading assets!");
@@ -59,107 +76,170 @@ public abstract class DownloadAssetsTask extends DefaultTestGradleTask {
         String assetsUrl = versionPackage.assetIndex().url();
         System.out.println("Assets url: " + assetsUrl);
 
-        AssetIndexHash assetIndexHash;
-        try (InputStream stream = new URI(assetsUrl).toURL().openStream()) {
-            var jsonStr = new String(stream.readAllBytes());
-            JsonObject json = TestGradlePlugin.GSON.fromJson(jsonStr, JsonObject.class);
-            assetIndexHash = AssetIndexHash.fromJson(json);
-        } catch (IOException | URISyntaxException exception) {
-            throw new RuntimeException("Failed to download asset index!", exception);
-        }
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats start = engine.snapshot();
+        AssetIndexHash assetIndexHash = engine.fetch(assetsUrl, body -> {
+            try (var reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+                return AssetIndexHash.read(reader);
+            }
+        });
 
-        System.out.println("Asset index hash: " + assetIndexHash);
+        Map<String, AssetObject> assets = assetIndexHash.getAssets();
+        System.out.println("Asset index: " + assets.size() + " assets");
 
         Path objectsPath = assetsPath.resolve("objects");
         Path indexesPath = assetsPath.resolve("indexes/%s.json".formatted(versionPackage.assetIndex().id()));
+        Path indexesTempPath = indexesPath.resolveSibling(indexesPath.getFileName() + ".tmp");
         Path minecraftAssets = OperatingSystem.getMinecraftDir().resolve("assets/objects");
         try {
             Files.createDirectories(objectsPath);
             Files.createDirectories(indexesPath.getParent());
 
-            Map<String, AssetObject> assets = assetIndexHash.getAssets();
-            List<String> assetKeys = new ArrayList<>(assets.keySet());
+            // failures are recorded by hash, every key that shares the object failed with it
+            final Queue<String> failedHashes = new ConcurrentLinkedQueue<>();
+            final FileHashCache hashCache = getFileHashCache();
+            final boolean verifyHashes = getVerifyHashes().get();
+            final ContentStore store = getContentStore();
+            final TestGradleExtension.ImportStrategy importStrategy = getImportStrategy();
+            final Set<String> launcherHashes = readLauncherAssetHashes(minecraftAssets.resolveSibling("indexes"));
+
+            // several keys can share an object, which only has to be checked and fetched once
+            Map<String, List<String>> keysByHash = new HashMap<>(assets.size());
+            List<AssetObject> objects = new ArrayList<>();
+            try (var writer = new JsonWriter(Files.newBufferedWriter(indexesTempPath, StandardCharsets.UTF_8))) {
+                writer.setIndent("  ");
+                writer.beginObject();
+                writer.name("objects");
+                writer.beginObject();
+                for (Map.Entry<String, AssetObject> entry : assets.entrySet()) {
+                    writer.name(entry.getKey());
+                    entry.getValue().write(writer);
+
+                    List<String> keys = keysByHash.computeIfAbsent(entry.getValue().hash(), ignored -> new ArrayList<>(1));
+                    keys.add(entry.getKey());
+                    if (keys.size() == 1) {
+                        objects.add(entry.getValue());
+                    }
+                }
+
+                writer.endObject();
+                writer.endObject();
+            }
+
+            // Sizes are compared before anything is hashed, so a warm store is verified with a few stat calls per
+            // object, and only the objects that are missing or corrupt reach the download pool
+            Predicate<AssetObject> isInPlace = asset -> {
+                String hash = asset.hash();
+                long size = asset.size();
+                Path assetPath = objectsPath.resolve(asset.getPath());
+                Path minecraftAssetPath = minecraftAssets.resolve(asset.getPath());
+                try {
+                    if (store.contains(hash, size, verifyHashes)) {
+                        if (store.isMaterialized(hash, assetPath))
+                            return true;
+                    } else if (hasSize(assetPath, size) && hashCache.matches(assetPath, HashingFunction.SHA1, hash, verifyHashes)) {
+                        // Downloaded before the store existed, it becomes the stored object
+                        store.importFile(assetPath, hash, TestGradleExtension.ImportStrategy.HARDLINK);
+                    } else if (hasSize(minecraftAssetPath, size) && (!verifyHashes && launcherHashes.contains(hash)
+                            || hashCache.matches(minecraftAssetPath, HashingFunction.SHA1, hash, verifyHashes))) {
+                        store.importFile(minecraftAssetPath, hash, importStrategy);
+                    } else {
+                        return false;
+                    }
 
-            // sort the assets by their key
-            Collections.sort(assetKeys);
+                    store.materialize(hash, assetPath);
+                    hashCache.record(assetPath, HashingFunction.SHA1, hash);
+                    return true;
+                } catch (IOException | RuntimeException exception) {
+                    System.out.println("Failed to verify asset " + asset.getPath() + ", downloading it again: " + exception.getMessage());
+                    return false;
+                }
+            };
 
-            // remove any duplicates
-            HashSet<String> assetSet = new HashSet<>(assets.size());
-            assetKeys.removeIf(key -> key == null || !assetSet.add(assets.get(key).getPath()));
+            long verifyStart = System.nanoTime();
+            List<AssetObject> missing;
+            try (var pool = new ForkJoinPool(getMaxParallelism())) {
+                missing = pool.submit(() -> objects.parallelStream().filter(isInPlace.negate()).toList()).join();
+            }
 
-            final CopyOnWriteArrayList<AssetObject> failedAssets = new CopyOnWriteArrayList<>();
+            System.out.println("Verified " + objects.size() + " asset objects in " + (System.nanoTime() - verifyStart) / 1_000_000
+                    + "ms, " + missing.size() + " to download!");
 
-            var indexJson = new JsonObject();
-            var objectsJson = new JsonObject();
-            try (ExecutorService executor = Executors.newFixedThreadPool(getConcurrentConnections().get())) {
-                for (String key : assetKeys) {
-                    AssetObject asset = assets.get(key);
-                    long size = asset.size();
+            try (ExecutorService executor = DownloadEngine.newWorkerExecutor(getConcurrentConnections().get())) {
+                for (AssetObject asset : missing) {
                     String hash = asset.hash();
                     String path = asset.getPath();
-                    String assetUrl = getAssetsUrl().get() + asset.getPath();
-
-                    var assetJson = new JsonObject();
-                    assetJson.addProperty("hash", hash);
-                    assetJson.addProperty("size", size);
-                    objectsJson.add(key, assetJson);
-
+                    String assetUrl = getAssetsUrl().get() + path;
                     Path assetPath = objectsPath.resolve(path);
-                    Path minecraftAssetPath = minecraftAssets.resolve(asset.getPath());
-
-                    if (Files.exists(assetPath) && HashingFunction.SHA1.hash(assetPath).equals(hash)) {
-                        // System.out.println("Skipping asset " + path + " as it already exists!");
-                        continue;
-                    }
-
-                    Runnable copyHandler = () -> {
-                        System.out.println("Copying asset " + path + " from " + minecraftAssetPath + " to " + assetPath + "!");
-                        if (Files.exists(minecraftAssetPath) && HashingFunction.SHA1.hash(minecraftAssetPath).equals(hash)) {
-                            try {
-                                Files.createDirectories(assetPath.getParent());
-                                Files.copy(minecraftAssetPath, assetPath);
-                                return;
-                            } catch (IOException ignored) {
-                            }
+                    executor.execute(() -> {
+                        try {
+                            System.out.println("Downloading asset " + path + " from " + assetUrl + "!");
+                            store.download(engine, assetUrl, hash, asset.size());
+                            store.materialize(hash, assetPath);
+                            hashCache.record(assetPath, HashingFunction.SHA1, hash);
+                        } catch (IOException | RuntimeException exception) {
+                            System.out.println("Failed to get asset " + path + " from " + assetUrl + ": " + exception.getMessage());
+                            failedHashes.add(hash);
                         }
-
-                        System.out.println("Downloading asset " + path + " from " + assetUrl + " to " + assetPath + "!");
-                        try (InputStream stream = new URI(assetUrl).toURL().openStream()) {
-                            Files.createDirectories(assetPath.getParent());
-                            Files.write(assetPath, stream.readAllBytes());
-                        } catch (IOException | URISyntaxException exception) {
-                            System.out.println("Failed to download asset " + path + " from " + assetUrl + "!");
-                            failedAssets.add(asset);
-                        }
-                    };
-
-                    executor.execute(copyHandler);
+                    });
                 }
             }
 
+            hashCache.save();
+            System.out.println("Downloads: " + engine.snapshot().since(start));
+            System.out.println("Assets: " + store);
+            store.writeReport(getStoreReport().get());
+
             try {
-                indexJson.add("objects", objectsJson);
-                Files.writeString(indexesPath, TestGradlePlugin.GSON.toJson(indexJson));
+                Files.move(indexesTempPath, indexesPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             } catch (IOException exception) {
                 throw new RuntimeException("Failed to write index json!", exception);
             }
 
-            if (!failedAssets.isEmpty()) {
-                StringBuilder errorMessage = new StringBuilder("Failed to download the following assets (Total: " + failedAssets.size() + "):\n");
-                for (AssetObject asset : failedAssets) {
-                    for (Map.Entry<String, AssetObject> entry : assets.entrySet()) {
-                        if (entry.getValue().hash().equals(asset.hash())) {
-                            errorMessage.append("Asset: ").append(entry.getKey()).append("\n");
-                            break;
-                        }
-                    }
+            if (!failedHashes.isEmpty()) {
+                List<String> failedKeys = failedHashes.stream().flatMap(hash -> keysByHash.get(hash).stream()).sorted().toList();
+                StringBuilder errorMessage = new StringBuilder("Failed to download the following assets (Total: " + failedKeys.size() + "):\n");
+                for (String key : failedKeys) {
+                    errorMessage.append("Asset: ").append(key).append("\n");
                 }
 
-                errorMessage.append("\nSome assets failed to download! See above for more details! Try running the task again!");
+                errorMessage.append("\nSome assets failed to download even after retrying! See above for more details!");
                 throw new RuntimeException(errorMessage.toString());
             }
         } catch (IOException exception) {
-            throw new RuntimeException("Failed to create assets directory!", exception);
+            throw new RuntimeException("Failed to write assets!", exception);
+        }
+    }
+
+    /**
+     * Collects the hashes listed by the asset indexes of the launcher. The launcher verified those objects when it
+     * downloaded them, so one of the right size can be imported without hashing it again.
+     */
+    private static Set<String> readLauncherAssetHashes(Path indexesDir) {
+        Set<String> hashes = new HashSet<>();
+        if (!Files.isDirectory(indexesDir))
+            return hashes;
+
+        try (DirectoryStream<Path> indexes = Files.newDirectoryStream(indexesDir, "*.json")) {
+            for (Path index : indexes) {
+                try (var reader = new JsonReader(Files.newBufferedReader(index, StandardCharsets.UTF_8))) {
+                    AssetIndexHash.read(reader).getAssets().values().forEach(asset -> hashes.add(asset.hash()));
+                } catch (IOException | RuntimeException exception) {
+                    System.out.println("Ignoring unreadable launcher asset index " + index + ": " + exception);
+                }
+            }
+        } catch (IOException exception) {
+            System.out.println("Failed to list launcher asset indexes in " + indexesDir + ": " + exception);
+        }
+
+        return hashes;
+    }
+
+    private static boolean hasSize(Path path, long size) {
+        try {
+            return Files.isRegularFile(path) && Files.size(path) == size;
+        } catch (IOException exception) {
+            return false;
         }
     }
 
@@ -1,5 +1,6 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
 import org.gradle.api.tasks.*;
@@ -51,6 +52,8 @@ public class DownloadClientMappingsTask extends DefaultTestGradleTask {
             }
         }
 
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats start = engine.snapshot();
         try {
             Files.deleteIfExists(clientMappingsPath);
             Files.deleteIfExists(clientMappingsHashPath);
@@ -64,11 +67,13 @@ public class DownloadClientMappingsTask extends DefaultTestGradleTask {
             System.out.println("Client mappings hash: " + clientMappingsHash);
             Files.writeString(clientMappingsHashPath, clientMappingsHash);
 
-            Path mappingsPath = clientMappingsDownload.downloadToPath(clientMappingsHashPath.getParent(), "client_mappings.txt");
+            Path mappingsPath = clientMappingsDownload.downloadToPath(engine, clientMappingsHashPath.getParent(), "client_mappings.txt", getFileHashCache());
             System.out.println("Client mappings downloaded to: " + mappingsPath);
 
             Files.move(mappingsPath, clientMappingsPath);
 
+            getFileHashCache().save();
+            System.out.println("Downloads: " + engine.snapshot().since(start));
             System.out.println("Done!");
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to download client mappings!", exception);
@@ -1,5 +1,6 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
 import org.gradle.api.tasks.*;
@@ -52,6 +53,8 @@ public class DownloadClientTask extends DefaultTestGradleTask {
             }
         }
 
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats start = engine.snapshot();
         try {
             Files.deleteIfExists(clientJarPath);
             Files.deleteIfExists(clientHashPath);
@@ -65,11 +68,13 @@ public class DownloadClientTask extends DefaultTestGradleTask {
             System.out.println("Client hash: " + clientHash);
             Files.writeString(clientHashPath, clientHash);
 
-            Path jarPath = clientDownload.downloadToPath(clientJarPath.getParent(), "client.jar");
+            Path jarPath = clientDownload.downloadToPath(engine, clientJarPath.getParent(), "client.jar", getFileHashCache());
             System.out.println("Client jar downloaded to: " + jarPath);
 
             Files.move(jarPath, clientJarPath);
 
+            getFileHashCache().save();
+            System.out.println("Downloads: " + engine.snapshot().since(start));
             System.out.println("Done!");
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to download client jar!", exception);
@@ -3,24 +3,36 @@ package dev.turtywurty.testgradleplugin.tasks;
 import com.google.gson.JsonObject;
 import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.OperatingSystem;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
+import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.Library;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.util.ContentStore;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
+import org.gradle.api.tasks.options.Option;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-// TODO: Cache this task by comparing the hashes of the libraries
 @CacheableTask
-public class DownloadLibrariesTask extends DefaultTestGradleTask {
+public abstract class DownloadLibrariesTask extends DefaultTestGradleTask {
     @InputFile
     @Classpath
     private final Path versionJsonPath;
@@ -38,8 +50,19 @@ public class DownloadLibrariesTask extends DefaultTestGradleTask {
         this.versionJsonPath = versionPath.resolve("version.json");
         this.librariesPath = versionPath.resolve("libraries");
         this.librariesJsonPath = versionPath.resolve("libraries.json");
+
+        getVerifyHashes().convention(false);
+        getStoreReport().convention(false);
     }
 
+    @Internal
+    @Option(option = "verify-hashes", description = "Re-hashes every library instead of trusting the file hash cache.")
+    public abstract Property<Boolean> getVerifyHashes();
+
+    @Internal
+    @Option(option = "store-report", description = "Walks the whole content store to report how much space it saves.")
+    public abstract Property<Boolean> getStoreReport();
+
     private static @NotNull StringBuilder getNormalizedPath(String[] split) {
         var pathBuilder = new StringBuilder();
         for (int index = 0; index < split.length - 1; index++) {
@@ -77,74 +100,60 @@ public class DownloadLibrariesTask extends DefaultTestGradleTask {
 
         System.out.println("Minecraft libraries path: " + minecraftLibrariesPath);
 
-        Map<String, Path> libraryJars = new HashMap<>();
-        for (Library library : libraries) {
-            java.util.Optional<List<Library.DownloadRule>> rules = library.rules();
-            if (rules.isPresent()) {
-                List<Library.DownloadRule> downloadRules = rules.get();
-                for (Library.DownloadRule rule : downloadRules) {
-                    Library.DownloadRule.Action action = rule.action();
-                    String osName = System.getProperty("os.name").toLowerCase(Locale.ROOT);
-                    String ruleOsName = rule.os().name().toLowerCase(Locale.ROOT);
-                    if (ruleOsName.equals(osName)) {
-                        if (action == Library.DownloadRule.Action.ALLOW) {
-                            System.out.println("Allowed to download library " + library.name());
-                        } else if (action == Library.DownloadRule.Action.DISALLOW) {
-                            System.out.println("Disallowed to download library " + library.name());
-                        }
-                    }
-                }
-            }
-
-            System.out.println("Library: " + library.name());
-            Download artifact = library.artifact();
-
-            // from: org.slf4j:slf4j-api:2.0.7
-            // to: org/slf4j/slf4j-api/2.0.7/slf4j-api-2.0.7.jar
-            String[] split = artifact.url()
-                    .replace("https://libraries.minecraft.net/", "")
-                    .split("/");
-            String fileName = split[split.length - 1];
-
-            StringBuilder pathBuilder = getNormalizedPath(split);
-
-            Path libraryPath = librariesPath.resolve(pathBuilder.toString());
-            Path libraryFile = libraryPath.resolve(fileName);
-            System.out.println("Library path: " + libraryFile);
-
-            if (Files.exists(libraryFile) && HashingFunction.SHA1.hash(libraryFile).equals(artifact.sha1())) {
-                System.out.println("Skipping library: " + library.name());
-                libraryJars.put(library.name(), libraryFile);
-                continue;
+        FileHashCache hashCache = getFileHashCache();
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats engineStart = engine.snapshot();
+        ContentStore store = getContentStore();
+        // The launcher keeps its libraries by path and may rewrite one in place, which would change the stored
+        // object and every version linked to it, so they are cloned or copied rather than hard linked
+        TestGradleExtension.ImportStrategy importStrategy = getImportStrategy() == TestGradleExtension.ImportStrategy.HARDLINK
+                ? TestGradleExtension.ImportStrategy.REFLINK : getImportStrategy();
+        boolean verifyHashes = getVerifyHashes().get();
+        long start = System.nanoTime();
+
+        // Every library is verified, copied or downloaded on its own worker, the results are collected in the
+        // original order so the output does not depend on which worker finishes first
+        List<Future<LibraryResult>> futures = new ArrayList<>(libraries.size());
+        try (ExecutorService executor = DownloadEngine.newWorkerExecutor(getMaxConcurrentDownloads())) {
+            for (Library library : libraries) {
+                futures.add(executor.submit(() -> resolveLibrary(library, minecraftLibrariesPath, hashCache, store, importStrategy, engine, verifyHashes)));
             }
+        }
 
-            Path minecraftLibraryPath = minecraftLibrariesPath.resolve(pathBuilder.toString()).resolve(fileName);
-            if (Files.exists(minecraftLibraryPath) && HashingFunction.SHA1.hash(minecraftLibraryPath).equals(artifact.sha1())) {
-                try {
-                    Files.createDirectories(libraryPath);
-                    Files.copy(minecraftLibraryPath, libraryFile);
-                } catch (IOException exception) {
-                    throw new RuntimeException("Failed to copy library " + library.name() + "!", exception);
-                }
-
-                libraryJars.put(library.name(), libraryFile);
-                continue;
+        hashCache.save();
+
+        Map<String, Path> libraryJars = new TreeMap<>();
+        List<String> failedLibraries = new ArrayList<>();
+        Map<Source, Integer> sources = new EnumMap<>(Source.class);
+        for (int index = 0; index < futures.size(); index++) {
+            try {
+                LibraryResult result = futures.get(index).get();
+                if (result == null)
+                    continue;
+
+                System.out.printf(Locale.ROOT, "Library %s: %s in %dms%n", result.name(), result.source().name().toLowerCase(Locale.ROOT), result.millis());
+                libraryJars.put(result.name(), result.file());
+                sources.merge(result.source(), 1, Integer::sum);
+            } catch (ExecutionException exception) {
+                Throwable cause = exception.getCause();
+                System.err.println("Failed to resolve library " + libraries.get(index).name() + ": " + cause);
+                failedLibraries.add(libraries.get(index).name() + " (" + cause.getMessage() + ")");
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while downloading libraries!", exception);
             }
-
-            Path downloadPath = artifact.downloadToPath(libraryPath, fileName);
-            System.out.println("Downloaded to: " + downloadPath);
-
-            libraryJars.put(library.name(), downloadPath);
         }
 
-        System.out.println("Downloaded " + libraryJars.size() + " libraries!");
+        if (!failedLibraries.isEmpty())
+            throw new RuntimeException("Failed to download the following libraries:\n" + String.join("\n", failedLibraries));
+
+        System.out.println("Downloaded " + libraryJars.size() + " libraries in " + (System.nanoTime() - start) / 1_000_000 + "ms " + sources + "!");
+        System.out.println("Downloads: " + engine.snapshot().since(engineStart));
+        System.out.println("Libraries: " + store);
+        store.writeReport(getStoreReport().get());
 
         JsonObject librariesObject = new JsonObject();
-        libraryJars.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEachOrdered(entry ->
-                        librariesObject.addProperty(entry.getKey(), entry.getValue().toString()));
+        libraryJars.forEach((name, path) -> librariesObject.addProperty(name, path.toString()));
 
         try {
             Files.createDirectories(librariesJsonPath.getParent());
@@ -157,6 +166,89 @@ public class DownloadLibrariesTask extends DefaultTestGradleTask {
         }
     }
 
+    private @Nullable LibraryResult resolveLibrary(Library library, Path minecraftLibrariesPath, FileHashCache hashCache,
+                                                   ContentStore store, TestGradleExtension.ImportStrategy importStrategy,
+                                                   DownloadEngine engine, boolean verifyHashes) {
+        long start = System.nanoTime();
+        java.util.Optional<List<Library.DownloadRule>> rules = library.rules();
+        if (rules.isPresent()) {
+            List<Library.DownloadRule> downloadRules = rules.get();
+            for (Library.DownloadRule rule : downloadRules) {
+                Library.DownloadRule.Action action = rule.action();
+                String osName = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+                String ruleOsName = rule.os().name().toLowerCase(Locale.ROOT);
+                if (ruleOsName.equals(osName)) {
+                    if (action == Library.DownloadRule.Action.ALLOW) {
+                        System.out.println("Allowed to download library " + library.name());
+                    } else if (action == Library.DownloadRule.Action.DISALLOW) {
+                        System.out.println("Disallowed to download library " + library.name());
+                    }
+                }
+            }
+        }
+
+        Download artifact = library.artifact();
+        if (artifact == null) {
+            System.out.println("Library " + library.name() + " has no artifact, skipping!");
+            return null;
+        }
+
+        // from: org.slf4j:slf4j-api:2.0.7
+        // to: org/slf4j/slf4j-api/2.0.7/slf4j-api-2.0.7.jar
+        String[] split = artifact.url()
+                .replace("https://libraries.minecraft.net/", "")
+                .split("/");
+        String fileName = split[split.length - 1];
+
+        StringBuilder pathBuilder = getNormalizedPath(split);
+
+        Path libraryPath = librariesPath.resolve(pathBuilder.toString());
+        Path libraryFile = libraryPath.resolve(fileName);
+
+        String sha1 = artifact.sha1();
+        long size = artifact.size() > 0 ? artifact.size() : -1;
+        if (!verifyHashes && store.isMaterialized(sha1, libraryFile))
+            return LibraryResult.since(start, library.name(), libraryFile, Source.CACHED);
+
+        Source source = Source.LINKED;
+        try {
+            if (!store.contains(sha1, size, verifyHashes)) {
+                Path minecraftLibraryPath = minecraftLibrariesPath.resolve(pathBuilder.toString()).resolve(fileName);
+                if (hashCache.matches(libraryFile, HashingFunction.SHA1, sha1, verifyHashes)) {
+                    // Downloaded before the store existed, it becomes the stored object
+                    store.importFile(libraryFile, sha1, TestGradleExtension.ImportStrategy.HARDLINK);
+                } else if (hashCache.matches(minecraftLibraryPath, HashingFunction.SHA1, sha1, verifyHashes)) {
+                    store.importFile(minecraftLibraryPath, sha1, importStrategy);
+                    source = Source.IMPORTED;
+                } else {
+                    System.out.println("Downloading " + artifact.url() + " to " + libraryFile);
+                    store.download(engine, artifact.url(), sha1, size);
+                    source = Source.DOWNLOADED;
+                }
+            }
+
+            store.materialize(sha1, libraryFile);
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to store library " + library.name() + "!", exception);
+        }
+
+        hashCache.record(libraryFile, HashingFunction.SHA1, sha1);
+        return LibraryResult.since(start, library.name(), libraryFile, source);
+    }
+
+    private enum Source {
+        CACHED,
+        LINKED,
+        IMPORTED,
+        DOWNLOADED
+    }
+
+    private record LibraryResult(String name, Path file, Source source, long millis) {
+        private static LibraryResult since(long startNanos, String name, Path file, Source source) {
+            return new LibraryResult(name, file, source, (System.nanoTime() - startNanos) / 1_000_000);
+        }
+    }
+
     public Path getVersionJsonPath() {
         return versionJsonPath;
     }
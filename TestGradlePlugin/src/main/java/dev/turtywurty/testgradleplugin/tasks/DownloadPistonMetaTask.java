@@ -1,16 +1,23 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.piston.PistonMeta;
 import dev.turtywurty.testgradleplugin.piston.PistonMetaVersion;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.options.Option;
 
 import java.nio.file.Path;
+import java.time.Duration;
 
 @CacheableTask
-public class DownloadPistonMetaTask extends DefaultTestGradleTask {
+public abstract class DownloadPistonMetaTask extends DefaultTestGradleTask {
     @OutputFile
     private final Path pistonFile, versionManifestFile;
 
@@ -18,21 +25,42 @@ public class DownloadPistonMetaTask extends DefaultTestGradleTask {
         Path cacheDir = getCacheDir();
         this.pistonFile = cacheDir.resolve("version_manifest.json");
         this.versionManifestFile = cacheDir.resolve(getMinecraftVersion()).resolve("version.json");
+
+        getRefreshManifest().convention(false);
     }
 
+    @Internal
+    @Option(option = "refresh-manifest", description = "Revalidates the version manifest even if it was checked recently.")
+    public abstract Property<Boolean> getRefreshManifest();
+
     @TaskAction
     public void downloadPistonMeta() {
         String version = getMinecraftVersion();
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats start = engine.snapshot();
 
         System.out.println("Downloading Piston Meta...");
-        PistonMeta.download(this.pistonFile);
+        Duration maxAge = getRefreshManifest().get() ? Duration.ZERO : getManifestTtl();
+        PistonMeta.download(engine, this.pistonFile, maxAge);
 
         var meta = new PistonMeta(this.pistonFile);
 
         PistonMetaVersion metaVersion = meta.findVersion(version);
+        if (metaVersion == null)
+            throw new IllegalStateException("Minecraft version " + version + " is not in the version manifest!");
+
+        // The manifest lists the SHA-1 of every version json, so an unchanged one never has to be fetched again
+        FileHashCache hashCache = getFileHashCache();
+        if (hashCache.matches(this.versionManifestFile, HashingFunction.SHA1, metaVersion.sha1(), false)) {
+            System.out.println("SKIPPING DOWNLOAD: Piston Meta Version " + version + " is up to date!");
+        } else {
+            System.out.println("Downloading Piston Meta Version...");
+            VersionPackage.download(engine, metaVersion, this.versionManifestFile);
+            hashCache.record(this.versionManifestFile, HashingFunction.SHA1, metaVersion.sha1());
+        }
 
-        System.out.println("Downloading Piston Meta Version...");
-        VersionPackage.download(metaVersion, this.versionManifestFile);
+        hashCache.save();
+        System.out.println("Downloads: " + engine.snapshot().since(start));
     }
 
     public Path getPistonFile() {
@@ -1,5 +1,6 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
 import org.gradle.api.tasks.*;
@@ -51,6 +52,8 @@ public class DownloadServerMappingsTask extends DefaultTestGradleTask {
             }
         }
 
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats start = engine.snapshot();
         try {
             Files.deleteIfExists(serverMappingsPath);
             Files.deleteIfExists(serverMappingsHashPath);
@@ -64,11 +67,13 @@ public class DownloadServerMappingsTask extends DefaultTestGradleTask {
             System.out.println("Server mappings hash: " + serverMappingsHash);
             Files.writeString(serverMappingsHashPath, serverMappingsHash);
 
-            Path mappingsPath = serverMappingsDownload.downloadToPath(serverMappingsHashPath.getParent(), "server_mappings.txt");
+            Path mappingsPath = serverMappingsDownload.downloadToPath(engine, serverMappingsHashPath.getParent(), "server_mappings.txt", getFileHashCache());
             System.out.println("Server mappings downloaded to: " + mappingsPath);
 
             Files.move(mappingsPath, serverMappingsPath);
 
+            getFileHashCache().save();
+            System.out.println("Downloads: " + engine.snapshot().since(start));
             System.out.println("Done!");
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to download server mappings!", exception);
@@ -1,5 +1,6 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
 import org.gradle.api.tasks.*;
@@ -52,24 +53,28 @@ public class DownloadServerTask extends DefaultTestGradleTask {
             }
         }
 
+        DownloadEngine engine = getDownloadEngine();
+        DownloadEngine.Stats start = engine.snapshot();
         try {
             Files.deleteIfExists(serverJarPath);
             Files.deleteIfExists(serverHashPath);
 
             System.out.println("Server jar hash mismatch! Re-downloading...");
 
-            Download serverDownload = versionPackage.downloads().client();
+            Download serverDownload = versionPackage.downloads().server();
             System.out.println("Server download: " + serverDownload.url());
 
             String serverHash = serverDownload.sha1();
             System.out.println("Server hash: " + serverHash);
             Files.writeString(serverHashPath, serverHash);
 
-            Path jarPath = serverDownload.downloadToPath(serverJarPath.getParent(), "server.jar");
+            Path jarPath = serverDownload.downloadToPath(engine, serverJarPath.getParent(), "server.jar", getFileHashCache());
             System.out.println("Server jar downloaded to: " + jarPath);
 
             Files.move(jarPath, serverJarPath);
 
+            getFileHashCache().save();
+            System.out.println("Downloads: " + engine.snapshot().since(start));
             System.out.println("Done!");
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to download server jar!", exception);
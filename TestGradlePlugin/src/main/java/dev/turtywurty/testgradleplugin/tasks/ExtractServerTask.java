@@ -9,6 +9,7 @@ import org.gradle.work.DisableCachingByDefault;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 @DisableCachingByDefault(because = "It's unnecessary")
 public class ExtractServerTask extends DefaultTestGradleTask {
@@ -45,19 +46,20 @@ public class ExtractServerTask extends DefaultTestGradleTask {
         long start = System.nanoTime();
         FileUtil.extractArchive(getProject(), jarPath, outputDir);
 
-        if (Files.exists(outputDir.resolve("META-INF/versions/%s/server-%s.jar"))) {
-            // clear output dir
+        // Since 1.18 the server jar is a bundler, the actual server is nested inside it
+        String version = getMinecraftVersion();
+        Path bundledJar = outputDir.resolve("META-INF/versions/%s/server-%s.jar".formatted(version, version));
+        if (Files.exists(bundledJar)) {
+            Path tempJar = tempOutputDir.resolve("server-%s.jar".formatted(version));
             try {
                 Files.createDirectories(tempOutputDir);
+                Files.move(bundledJar, tempJar, StandardCopyOption.REPLACE_EXISTING);
             } catch (IOException exception) {
-                throw new IllegalStateException("Failed to create output directory!", exception);
+                throw new IllegalStateException("Failed to move bundled server jar!", exception);
             }
 
-            // move files to temp output dir
-            FileUtil.moveFiles(outputDir, tempOutputDir);
-
-            start = System.nanoTime();
-            FileUtil.extractArchive(getProject(), tempOutputDir.resolve("META-INF/versions/%s/server-%s.jar"), outputDir);
+            FileUtil.deleteDirectory(outputDir);
+            FileUtil.extractArchive(getProject(), tempJar, outputDir);
 
             // delete temp output dir
             FileUtil.deleteDirectory(tempOutputDir);
@@ -1,13 +1,15 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
+import dev.turtywurty.testgradleplugin.mappings.DirectoryMerger;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
 import dev.turtywurty.testgradleplugin.util.FileUtil;
 import org.gradle.api.tasks.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
 
 @CacheableTask
 public class MergeTask extends DefaultTestGradleTask {
@@ -18,13 +20,16 @@ public class MergeTask extends DefaultTestGradleTask {
     @OutputDirectory
     private final Path joinedDir;
 
+    private final Path joinedJar;
+
     public MergeTask() {
         Path cacheDir = getCacheDir();
         Path versionPath = cacheDir.resolve(getMinecraftVersion());
 
-        this.clientDir = versionPath.resolve("client");
-        this.serverDir = versionPath.resolve("server");
-        this.joinedDir = versionPath.resolve("joined");
+        this.clientDir = versionPath.resolve("remapped_client");
+        this.serverDir = versionPath.resolve("remapped_server");
+        this.joinedDir = versionPath.resolve("remapped_joined");
+        this.joinedJar = versionPath.resolve("repackaged_joined.jar");
     }
 
     @TaskAction
@@ -35,10 +40,19 @@ public class MergeTask extends DefaultTestGradleTask {
         if (side != TestGradleExtension.Side.BOTH)
             return;
 
+        if (getRemapMode() == TestGradleExtension.RemapMode.JAR) {
+            // The jar remapper reads both jars and writes the joined jar in one pass, there is nothing left to merge
+            if (Files.notExists(joinedJar))
+                throw new IllegalStateException("Joined jar is missing, please run the remapClasses task!");
+
+            System.out.println("Using " + joinedJar.getFileName() + " written by the jar remapper!");
+            return;
+        }
+
         if (Files.notExists(clientDir))
-            throw new IllegalStateException("Client directory is missing, please run the extractClient task!");
+            throw new IllegalStateException("Remapped client directory is missing, please run the remapClasses task!");
         if (Files.notExists(serverDir))
-            throw new IllegalStateException("Server directory is missing, please run the extractServer task!");
+            throw new IllegalStateException("Remapped server directory is missing, please run the remapClasses task!");
 
         try {
             if (Files.exists(joinedDir)) {
@@ -50,46 +64,17 @@ public class MergeTask extends DefaultTestGradleTask {
             throw new IllegalStateException("Failed to create joined directory!", exception);
         }
 
-        try (Stream<Path> clientFiles = Files.walk(clientDir)) {
-            clientFiles.forEach(clientFile -> {
-                if (Files.isDirectory(clientFile))
-                    return;
-
-                Path joinedFile = joinedDir.resolve(clientDir.relativize(clientFile));
-                if (Files.exists(joinedFile))
-                    return;
-
-                try {
-                    Files.createDirectories(joinedFile.getParent());
-                    Files.copy(clientFile, joinedFile);
-                } catch (IOException exception) {
-                    throw new IllegalStateException("Failed to copy client file!", exception);
-                }
-            });
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to walk client directory!", exception);
-        }
-
-        try (Stream<Path> serverFiles = Files.walk(serverDir)) {
-            serverFiles.forEach(serverFile -> {
-                if (Files.isDirectory(serverFile))
-                    return;
-
-                Path joinedFile = joinedDir.resolve(serverDir.relativize(serverFile));
-                if (Files.exists(joinedFile))
-                    return;
-
-                try {
-                    Files.createDirectories(joinedFile.getParent());
-                    Files.copy(serverFile, joinedFile);
-                } catch (IOException exception) {
-                    throw new IllegalStateException("Failed to copy server file!", exception);
-                }
-            });
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to walk server directory!", exception);
+        long start = System.nanoTime();
+        DirectoryMerger.Result result;
+        try (var pool = new ForkJoinPool(getMaxParallelism())) {
+            FileHashCache hashCache = getFileHashCache();
+            result = new DirectoryMerger(clientDir, serverDir, joinedDir, hashCache).merge(pool);
+            hashCache.save();
         }
 
+        System.out.println("Merged " + result.files() + " files into " + result.directories() + " directories in "
+                + (System.nanoTime() - start) / 1_000_000 + "ms (" + result.linked() + " linked, " + result.copied()
+                + " copied, " + result.merged() + " classes merged with " + result.conflicts() + " initializer conflicts, " + result.marked() + " classes on one side only)!");
         System.out.println("Finished merging jars!");
     }
 
@@ -104,4 +89,8 @@ public class MergeTask extends DefaultTestGradleTask {
     public Path getJoinedDir() {
         return joinedDir;
     }
+
+    public Path getJoinedJar() {
+        return joinedJar;
+    }
 }
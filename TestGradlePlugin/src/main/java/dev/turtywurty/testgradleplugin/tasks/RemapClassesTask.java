@@ -1,41 +1,85 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import com.google.gson.JsonObject;
+import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
 import dev.turtywurty.testgradleplugin.mappings.*;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
 import dev.turtywurty.testgradleplugin.util.FileUtil;
 import org.gradle.api.tasks.InputDirectory;
 import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.TaskAction;
-import org.objectweb.asm.commons.SimpleRemapper;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.Serial;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class RemapClassesTask extends DefaultTestGradleTask {
     @InputFiles
-    private final Path clientMappingsPath;
+    @Optional
+    private final Path clientMappingsPath, serverMappingsPath;
     @InputDirectory
-    private final Path clientDir;
+    @Optional
+    private final Path clientDir, serverDir;
+    @InputFiles
+    @Optional
+    private final Path clientJar, serverJar;
 
-    private final Path remappedClientDir;
+    private final Path clientHierarchyPath, serverHierarchyPath;
+    private final Path remappedClientDir, remappedServerDir;
+    private final Path remappedClientJar, remappedServerJar, remappedJoinedJar;
+    private final Path statsPath;
 
     public RemapClassesTask() {
         Path cacheDir = getCacheDir();
         Path versionPath = cacheDir.resolve(getMinecraftVersion());
 
         this.clientMappingsPath = versionPath.resolve("client_mappings.txt");
+        this.serverMappingsPath = versionPath.resolve("server_mappings.txt");
         this.clientDir = versionPath.resolve("client");
+        this.serverDir = versionPath.resolve("server");
+        this.clientJar = versionPath.resolve("client.jar");
+        this.serverJar = versionPath.resolve("server.jar");
+        this.clientHierarchyPath = versionPath.resolve("client_hierarchy.bin");
+        this.serverHierarchyPath = versionPath.resolve("server_hierarchy.bin");
         this.remappedClientDir = versionPath.resolve("remapped_client");
+        this.remappedServerDir = versionPath.resolve("remapped_server");
+        this.statsPath = versionPath.resolve("remap_stats.json");
+
+        // In jar mode the classes are remapped straight into the final jar, both sides at once when they are joined,
+        // so there is nothing left to merge or repackage
+        this.remappedClientJar = versionPath.resolve("repackaged_client.jar");
+        this.remappedServerJar = versionPath.resolve("repackaged_server.jar");
+        this.remappedJoinedJar = versionPath.resolve("repackaged_joined.jar");
     }
 
-    private static void remap(Path inputDir, Path outputDir, Path mappingsFile) {
+    private static MappingsIndex loadMappings(Path mappingsFile, SymbolPool pool) {
+        try {
+            List<ClassMapping> mappings = OfficialMappingsFile.parse(mappingsFile, pool);
+            if (mappings.isEmpty()) {
+                throw new RuntimeException("No mappings found in the mappings file: " + mappingsFile);
+            }
+
+            return MappingsIndex.of(mappings);
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to parse mappings file: " + mappingsFile, exception);
+        }
+    }
+
+    private static void prepareOutput(Path inputDir, Path outputDir) {
         if (Files.notExists(inputDir) || !Files.isDirectory(inputDir))
             throw new RuntimeException("Input directory does not exist or is not a directory: " + inputDir);
 
@@ -49,107 +93,206 @@ public class RemapClassesTask extends DefaultTestGradleTask {
 
         if (!Files.isDirectory(outputDir))
             throw new RuntimeException("Output directory is not a directory: " + outputDir);
+    }
 
-        try {
-            List<ClassMapping> mappings = OfficialMappingsFile.parse(mappingsFile);
-            if (mappings.isEmpty()) {
-                throw new RuntimeException("No mappings found in the mappings file: " + mappingsFile);
-            }
+    /**
+     * Loads the manifest of the previous run into the given output directory. Without one there is no telling which
+     * files in the directory are stale, so it is cleared and every class is remapped.
+     */
+    private static DirectoryRemapTask prepareIncremental(Path inputDir, Path outputDir, MappingsIndex mappings, RemapStats stats) {
+        RemapManifest previous = RemapManifest.load(RemapManifest.pathFor(outputDir));
+        if (previous.isEmpty() && Files.exists(outputDir))
+            FileUtil.deleteDirectory(outputDir);
 
-            Map<String, String> originalToObfuscated = mappings.stream()
-                    .collect(Collectors.toMap(
-                            classMapping -> classMapping.getOriginalName().replace(".", "/"),
-                            ClassMapping::getObfuscatedName));
-            var nameRemapper = new SimpleRemapper(originalToObfuscated);
-            for (ClassMapping classMapping : mappings) {
-                for (MethodMapping methodMapping : classMapping.getMethods()) {
-                    String asmDesc = toAsmMethodDescriptor(
-                            methodMapping.getDescriptor(), methodMapping.getReturnType());
-
-                    String obfuscatedDesc = nameRemapper.mapMethodDesc(asmDesc);
-                    methodMapping.setObfuscatedDescriptor(obfuscatedDesc);
-                }
+        prepareOutput(inputDir, outputDir);
+        return new DirectoryRemapTask(inputDir, outputDir, mappings, previous, stats);
+    }
 
-                for (FieldMapping fieldMapping : classMapping.getFields()) {
-                    String obfuscatedDesc = nameRemapper.map(fieldMapping.getDescriptor());
-                    fieldMapping.setObfuscatedDescriptor(obfuscatedDesc);
-                }
-            }
+    /**
+     * Remaps every given directory in one shared pool, so that the client and server trees are processed at the
+     * same time instead of one after the other.
+     */
+    private static void remapDirectories(List<DirectoryRemapTask> tasks, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        List<ForkJoinTask<Void>> submitted = new ArrayList<>(tasks.size());
+        for (DirectoryRemapTask task : tasks) {
+            submitted.add(pool.submit(task));
+        }
 
-            try (var pool = new ForkJoinPool()) {
-                pool.submit(new DirectoryRemapTask(inputDir, outputDir, mappings)).join();
-            }
-        } catch (IOException exception) {
-            throw new RuntimeException("Failed to parse mappings file: " + mappingsFile, exception);
+        submitted.forEach(ForkJoinTask::join);
+
+        for (DirectoryRemapTask task : tasks) {
+            task.finish();
         }
+
+        System.out.println("Remapping took " + (System.nanoTime() - start) / 1_000_000 + "ms with " + pool.getParallelism() + " threads!");
     }
 
-    private static String toAsmMethodDescriptor(String humanParams, String humanReturn) {
-        String params = humanParams.substring(1, humanParams.length() - 1).trim();
-        StringBuilder sb = new StringBuilder("(");
-        if (!params.isEmpty()) {
-            for (String p : params.split(",")) {
-                sb.append(toAsmTypeDescriptor(p.trim()));
-            }
+    /**
+     * Remaps every given jar straight into its output jar, sharing one pool between them.
+     */
+    private static void remapJars(List<JarRemapJob> jobs, ForkJoinPool pool, RemapStats stats) {
+        long start = System.nanoTime();
+        int window = pool.getParallelism() * 16;
+        List<CompletableFuture<JarRemapper.Result>> submitted = new ArrayList<>(jobs.size());
+        for (JarRemapJob job : jobs) {
+            submitted.add(CompletableFuture.supplyAsync(() -> {
+                Path manifestFile = RemapManifest.pathFor(job.outputJar);
+                RemapManifest current = RemapManifest.empty();
+                JarRemapper.Result result = JarRemapper.remapJar(job.inputJar, job.outputJar, job.mappings,
+                        RemapManifest.load(manifestFile), current, stats, pool, window);
+                current.save(manifestFile);
+                return result;
+            }, pool));
         }
-        sb.append(")");
-        sb.append(toAsmTypeDescriptor(humanReturn));
-        return sb.toString();
-    }
-
-    private static String toAsmTypeDescriptor(String human) {
-        switch (human) {
-            case "byte":
-                return "B";
-            case "char":
-                return "C";
-            case "double":
-                return "D";
-            case "float":
-                return "F";
-            case "int":
-                return "I";
-            case "long":
-                return "J";
-            case "short":
-                return "S";
-            case "boolean":
-                return "Z";
-            case "void":
-                return "V";
-        }
-
-        // handle arrays
-        if (human.endsWith("[]")) {
-            return "[" + toAsmTypeDescriptor(human.substring(0, human.length() - 2));
-        }
-        // object
-        return "L" + human.replace('.', '/') + ";";
+
+        for (int index = 0; index < jobs.size(); index++) {
+            JarRemapJob job = jobs.get(index);
+            JarRemapper.Result result = submitted.get(index).join();
+            System.out.println("Remapped " + (result.classes() - result.reused()) + " classes from " + job.inputJar.getFileName()
+                    + " into " + job.outputJar.getFileName() + ", reused " + result.reused() + " unchanged classes");
+        }
+
+        System.out.println("Remapping took " + (System.nanoTime() - start) / 1_000_000 + "ms with " + pool.getParallelism() + " threads!");
+    }
+
+    /**
+     * Remaps the client and server jars into the joined jar in a single pass, see {@link JoinedJarRemapper}.
+     *
+     * @param debugDir where to write the remapped classes of each side and the joined classes as well, or null
+     */
+    private static void remapJoined(Path clientJar, MappingsIndex clientMappings, Path serverJar, MappingsIndex serverMappings,
+                                    Path joinedJar, @Nullable Path debugDir, ForkJoinPool pool, RemapStats stats) {
+        long start = System.nanoTime();
+        Path manifestFile = RemapManifest.pathFor(joinedJar);
+        RemapManifest current = RemapManifest.empty();
+        JoinedJarRemapper.Result result = JoinedJarRemapper.remapJoined(clientJar, clientMappings, serverJar, serverMappings,
+                joinedJar, RemapManifest.load(manifestFile), current, stats, debugDir, pool, pool.getParallelism() * 16);
+        current.save(manifestFile);
+
+        System.out.println("Remapped " + (result.classes() - result.reused()) + " classes from " + clientJar.getFileName()
+                + " and " + serverJar.getFileName() + " into " + joinedJar.getFileName() + ", reused " + result.reused()
+                + " unchanged classes (" + result.clientOnly() + " client only, " + result.serverOnly() + " server only, "
+                + result.shared() + " in both, " + stats.getMergedClasses() + " of them merged with "
+                + stats.getInitializerConflicts() + " initializer conflicts)");
+        System.out.println("Remapping took " + (System.nanoTime() - start) / 1_000_000 + "ms with " + pool.getParallelism() + " threads!");
+    }
+
+    private record JarRemapJob(Path inputJar, Path outputJar, MappingsIndex mappings) {
     }
 
+    /**
+     * Remaps the classes of a directory. The root task lists the class files once, and from there the list is split
+     * in halves until each task only has a small batch left, so the work spreads across every thread of the pool.
+     * <p>
+     * Classes whose bytes and mapping entries are unchanged since the previous run, according to its manifest, are
+     * left alone; once every batch is done {@link #finish()} deletes the outputs of classes that no longer exist.
+     */
+    // ForkJoinTask is Serializable, but these tasks only ever run in this process and are never serialized
     private static class DirectoryRemapTask extends RecursiveAction {
-        private final Path inputDir;
-        private final Path outputDir;
-        private final List<ClassMapping> mappings;
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private static final int BATCH_SIZE = 64;
 
-        public DirectoryRemapTask(Path inputDir, Path outputDir, List<ClassMapping> mappings) {
+        private final transient Path inputDir;
+        private final transient Path outputDir;
+        private final transient MappingsIndex mappings;
+        private final transient RemapManifest previous, current;
+        private final transient RemapStats stats;
+        private final transient List<Path> classFiles;
+        private final int from, to;
+
+        public DirectoryRemapTask(Path inputDir, Path outputDir, MappingsIndex mappings, RemapManifest previous, RemapStats stats) {
+            this(inputDir, outputDir, mappings, previous, RemapManifest.empty(), stats, null, 0, 0);
+        }
+
+        private DirectoryRemapTask(Path inputDir, Path outputDir, MappingsIndex mappings, RemapManifest previous,
+                                   RemapManifest current, RemapStats stats, List<Path> classFiles, int from, int to) {
             this.inputDir = inputDir;
             this.outputDir = outputDir;
             this.mappings = mappings;
+            this.previous = previous;
+            this.current = current;
+            this.stats = stats;
+            this.classFiles = classFiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        private DirectoryRemapTask slice(List<Path> classFiles, int from, int to) {
+            return new DirectoryRemapTask(inputDir, outputDir, mappings, previous, current, stats, classFiles, from, to);
         }
 
         @Override
         protected void compute() {
+            if (classFiles == null) {
+                List<Path> files = listClassFiles(inputDir);
+                slice(files, 0, files.size()).compute();
+                return;
+            }
+
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(slice(classFiles, from, middle), slice(classFiles, middle, to));
+                return;
+            }
+
+            for (int index = from; index < to; index++) {
+                Path filePath = classFiles.get(index);
+                try {
+                    remap(filePath);
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to remap class: " + filePath, e);
+                }
+            }
+        }
+
+        private void remap(Path filePath) throws IOException {
+            String input = inputDir.relativize(filePath).toString().replace('\\', '/');
+            byte[] classBytes = Files.readAllBytes(filePath);
+
+            RemapManifest.Entry hashed = RemapManifest.hash(classBytes, mappings);
+            RemapManifest.Entry last = previous.get(input);
+            if (hashed.isSameAs(last) && Files.exists(outputDir.resolve(last.output()))) {
+                current.put(input, last);
+                stats.classReused();
+                return;
+            }
+
+            RemapperTool.RemappedClass remappedClass = RemapperTool.remapClass(classBytes, mappings, stats);
+            RemapperTool.writeClass(outputDir, remappedClass);
+            current.put(input, hashed.withOutput(remappedClass.name() + ".class"));
+        }
+
+        /**
+         * Deletes the outputs of classes that were removed from the input and saves the new manifest.
+         */
+        public void finish() {
+            Set<String> outputs = new HashSet<>();
+            current.getEntries().values().forEach(entry -> outputs.add(entry.output()));
+
+            int deleted = 0;
+            for (Map.Entry<String, RemapManifest.Entry> entry : previous.getEntries().entrySet()) {
+                String output = entry.getValue().output();
+                if (current.get(entry.getKey()) != null || output == null || outputs.contains(output))
+                    continue;
+
+                try {
+                    if (Files.deleteIfExists(outputDir.resolve(output)))
+                        deleted++;
+                } catch (IOException exception) {
+                    throw new RuntimeException("Failed to delete stale class: " + output, exception);
+                }
+            }
+
+            current.save(RemapManifest.pathFor(outputDir));
+            System.out.println("Remapped " + inputDir.getFileName() + " into " + outputDir.getFileName() + ", deleted " + deleted + " stale classes");
+        }
+
+        private static List<Path> listClassFiles(Path inputDir) {
             try (Stream<Path> paths = Files.walk(inputDir)) {
-                paths.forEach(filePath -> {
-                    if (Files.isRegularFile(filePath) && filePath.toString().endsWith(".class")) {
-                        try {
-                            RemapperTool.remapClass(filePath, outputDir, mappings);
-                        } catch (Exception e) {
-                            throw new RuntimeException("Failed to remap class: " + filePath, e);
-                        }
-                    }
-                });
+                return paths.filter(filePath -> filePath.toString().endsWith(".class") && Files.isRegularFile(filePath))
+                        .toList();
             } catch (IOException exception) {
                 throw new RuntimeException("Failed to walk input directory: " + inputDir, exception);
             }
@@ -161,27 +304,160 @@ public class RemapClassesTask extends DefaultTestGradleTask {
         System.out.println("Remapping classes!");
 
         TestGradleExtension.Side side = getSide();
-        if (side == TestGradleExtension.Side.CLIENT || side == TestGradleExtension.Side.BOTH) {
+        boolean jarMode = getRemapMode() == TestGradleExtension.RemapMode.JAR;
+        if (isClient()) {
             if (Files.notExists(clientMappingsPath))
                 throw new RuntimeException("client_mappings.txt is missing, please run the downloadClientMappings task!");
 
-            if (Files.notExists(clientDir))
+            if (Files.notExists(clientJar))
+                throw new RuntimeException("client.jar is missing, please run the downloadClient task!");
+
+            if (!jarMode && Files.notExists(clientDir))
                 throw new RuntimeException("client is missing, please run the extractClient task!");
+        }
+
+        if (isServer()) {
+            if (Files.notExists(serverMappingsPath))
+                throw new RuntimeException("server_mappings.txt is missing, please run the downloadServerMappings task!");
+
+            if (Files.notExists(serverJar))
+                throw new RuntimeException("server.jar is missing, please run the downloadServer task!");
+
+            if (!jarMode && Files.notExists(serverDir))
+                throw new RuntimeException("server is missing, please run the extractServer task!");
+        }
+
+        // Both sides share one symbol pool, so the names and descriptors they have in common are only held once.
+        // The obfuscated names differ between the client and server jars, so each side still gets its own index.
+        // The pool is made per run, so it does not keep the symbols of every version remapped in the daemon alive.
+        var symbols = new SymbolPool();
+        MappingsIndex clientMappings = isClient() ? loadMappings(clientMappingsPath, symbols) : null;
+        MappingsIndex serverMappings = isServer() ? loadMappings(serverMappingsPath, symbols) : null;
+        System.out.println("Remapping " + side.name().toLowerCase() + " with " + symbols.size() + " shared symbols");
+
+        // The hierarchy is always read from the jar, even in directory mode, since that is what its cache is keyed by
+        Path clientInputJar = clientJar;
+        Path serverInputJar = null;
+        if (serverMappings != null) {
+            String version = getMinecraftVersion();
+            serverInputJar = FileUtil.unbundleServerJar(serverJar, version, serverJar.resolveSibling("server-%s-unbundled.jar".formatted(version)));
+        }
+
+        FileHashCache hashCache = getFileHashCache();
+        var stats = new RemapStats();
+        RemapStats.Progress progress = stats.startProgress(side.name().toLowerCase(), 5);
+        try (var pool = new ForkJoinPool(getMaxParallelism())) {
+            if (clientMappings != null) {
+                clientMappings = clientMappings.withHierarchy(ClassHierarchy.load(clientInputJar, hashCache.hash(clientInputJar, HashingFunction.SHA1), clientHierarchyPath, pool));
+            }
+
+            if (serverMappings != null) {
+                serverMappings = serverMappings.withHierarchy(ClassHierarchy.load(serverInputJar, hashCache.hash(serverInputJar, HashingFunction.SHA1), serverHierarchyPath, pool));
+            }
+
+            if (jarMode && clientMappings != null && serverMappings != null) {
+                Path debugDir = null;
+                if (isDebugOutputs()) {
+                    debugDir = remappedJoinedJar.getParent();
+                    for (String directory : List.of("remapped_client", "remapped_server", "remapped_joined")) {
+                        if (Files.exists(debugDir.resolve(directory))) {
+                            FileUtil.deleteDirectory(debugDir.resolve(directory));
+                        }
+                    }
+                }
+
+                remapJoined(clientInputJar, clientMappings, serverInputJar, serverMappings, remappedJoinedJar, debugDir, pool, stats);
+            } else if (jarMode) {
+                List<JarRemapJob> jobs = new ArrayList<>(2);
+                if (clientMappings != null) {
+                    jobs.add(new JarRemapJob(clientInputJar, remappedClientJar, clientMappings));
+                }
+
+                if (serverMappings != null) {
+                    jobs.add(new JarRemapJob(serverInputJar, remappedServerJar, serverMappings));
+                }
+
+                remapJars(jobs, pool, stats);
+            } else {
+                List<DirectoryRemapTask> tasks = new ArrayList<>(2);
+                if (clientMappings != null) {
+                    tasks.add(prepareIncremental(clientDir, remappedClientDir, clientMappings, stats));
+                }
 
-            if (Files.exists(remappedClientDir))
-                FileUtil.deleteDirectory(remappedClientDir);
+                if (serverMappings != null) {
+                    tasks.add(prepareIncremental(serverDir, remappedServerDir, serverMappings, stats));
+                }
 
-            remap(clientDir, remappedClientDir, clientMappingsPath);
+                remapDirectories(tasks, pool);
+            }
+        } finally {
+            progress.close();
         }
 
-        // TODO: Figure out how to have optional directories then we can implement server remapping
+        hashCache.save();
+        System.out.println("Remapped " + side.name().toLowerCase() + ": " + stats);
+
+        var details = new JsonObject();
+        details.addProperty("version", getMinecraftVersion());
+        details.addProperty("side", side.name().toLowerCase());
+        details.addProperty("mode", getRemapMode().name().toLowerCase());
+        details.addProperty("threads", getMaxParallelism());
+        stats.writeSummary(statsPath, details);
     }
 
     public Path getClientMappingsPath() {
         return clientMappingsPath;
     }
 
+    public Path getServerMappingsPath() {
+        return serverMappingsPath;
+    }
+
     public Path getClientDir() {
         return clientDir;
     }
+
+    public Path getServerDir() {
+        return serverDir;
+    }
+
+    public Path getClientHierarchyPath() {
+        return clientHierarchyPath;
+    }
+
+    public Path getServerHierarchyPath() {
+        return serverHierarchyPath;
+    }
+
+    public Path getRemappedClientDir() {
+        return remappedClientDir;
+    }
+
+    public Path getRemappedServerDir() {
+        return remappedServerDir;
+    }
+
+    public Path getClientJar() {
+        return clientJar;
+    }
+
+    public Path getServerJar() {
+        return serverJar;
+    }
+
+    public Path getRemappedClientJar() {
+        return remappedClientJar;
+    }
+
+    public Path getRemappedServerJar() {
+        return remappedServerJar;
+    }
+
+    public Path getRemappedJoinedJar() {
+        return remappedJoinedJar;
+    }
+
+    public Path getStatsPath() {
+        return statsPath;
+    }
 }
@@ -41,6 +41,22 @@ public class RepackageTask extends DefaultTestGradleTask {
     @TaskAction
     public void repackage() {
         TestGradleExtension.Side side = getSide();
+        if (getRemapMode() == TestGradleExtension.RemapMode.JAR) {
+            // The remap (or merge, for both sides) already streamed everything into the output jar
+            if (Files.notExists(outputJar))
+                throw new IllegalStateException("The " + side.name().toLowerCase() + " has not been remapped yet!");
+
+            System.out.println("Using " + outputJar.getFileName() + " written by the jar remapper for version " + getMinecraftVersion() + "!");
+        } else {
+            repackageDirectory(side);
+        }
+
+        // add the recompiled jar to the classpath
+        getProject().getRepositories().flatDir(repo -> repo.dir(outputJar.getParent()));
+        getProject().getDependencies().add("implementation", getProject().files(outputJar));
+    }
+
+    private void repackageDirectory(TestGradleExtension.Side side) {
         if (Files.notExists(inputDir))
             throw new IllegalStateException("The " + side.name().toLowerCase() + " has not been extracted yet!");
 
@@ -72,10 +88,6 @@ public class RepackageTask extends DefaultTestGradleTask {
         }
 
         System.out.println("Successfully repackaged " + side.name().toLowerCase() + " for version " + getMinecraftVersion() + "!");
-
-        // add the recompiled jar to the classpath
-        getProject().getRepositories().flatDir(repo -> repo.dir(outputJar.getParent()));
-        getProject().getDependencies().add("implementation", getProject().files(outputJar));
     }
 
     public Path getInputDir() {
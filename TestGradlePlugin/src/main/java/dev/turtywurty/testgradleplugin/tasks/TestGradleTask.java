@@ -1,13 +1,19 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
+import dev.turtywurty.testgradleplugin.util.ContentStore;
+import dev.turtywurty.testgradleplugin.util.FileHashCache;
 import org.gradle.api.Task;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.Internal;
 
 import java.nio.file.Path;
+import java.time.Duration;
 
 public interface TestGradleTask extends Task {
+    int DEFAULT_MANIFEST_TTL_MINUTES = 30;
+
     @Internal
     default TestGradleExtension getExtension() {
         return getProject().getExtensions().getByType(TestGradleExtension.class);
@@ -27,6 +33,25 @@ public interface TestGradleTask extends Task {
         return getExtension().getSideEnum().getOrElse(TestGradleExtension.Side.BOTH);
     }
 
+    @Internal
+    default TestGradleExtension.RemapMode getRemapMode() {
+        return getExtension().getRemapModeEnum().getOrElse(TestGradleExtension.RemapMode.JAR);
+    }
+
+    @Internal
+    default boolean isDebugOutputs() {
+        return getExtension().getDebugOutputs().getOrElse(false);
+    }
+
+    @Internal
+    default int getMaxParallelism() {
+        int maxParallelism = getExtension().getMaxParallelism().getOrElse(Runtime.getRuntime().availableProcessors());
+        if (maxParallelism < 1)
+            throw new IllegalStateException("Max parallelism must be at least 1!");
+
+        return maxParallelism;
+    }
+
     @Internal
     default String getVineflowerVersion() {
         Property<String> vineflowerVersion = getExtension().getVineflowerVersion();
@@ -50,4 +75,46 @@ public interface TestGradleTask extends Task {
     default Path getCacheDir() {
         return getProject().getGradle().getGradleUserHomeDir().toPath().resolve("caches/testGradle");
     }
+
+    @Internal
+    default FileHashCache getFileHashCache() {
+        return FileHashCache.forDirectory(getCacheDir());
+    }
+
+    @Internal
+    default TestGradleExtension.ImportStrategy getImportStrategy() {
+        return getExtension().getImportStrategyEnum().getOrElse(TestGradleExtension.ImportStrategy.HARDLINK);
+    }
+
+    @Internal
+    default ContentStore getContentStore() {
+        return ContentStore.forDirectory(getCacheDir());
+    }
+
+    @Internal
+    default Duration getManifestTtl() {
+        int minutes = getExtension().getManifestTtlMinutes().getOrElse(DEFAULT_MANIFEST_TTL_MINUTES);
+        if (minutes < 0)
+            throw new IllegalStateException("Manifest TTL must not be negative!");
+
+        return Duration.ofMinutes(minutes);
+    }
+
+    @Internal
+    default int getMaxConcurrentDownloads() {
+        int maxConcurrentDownloads = getExtension().getMaxConcurrentDownloads().getOrElse(DownloadEngine.DEFAULT_CONNECTIONS_PER_HOST);
+        if (maxConcurrentDownloads < 1)
+            throw new IllegalStateException("Max concurrent downloads must be at least 1!");
+
+        return maxConcurrentDownloads;
+    }
+
+    @Internal
+    default DownloadEngine getDownloadEngine() {
+        int maxConnections = getExtension().getMaxConnectionsPerHost().getOrElse(DownloadEngine.DEFAULT_CONNECTIONS_PER_HOST);
+        if (maxConnections < 1)
+            throw new IllegalStateException("Max connections per host must be at least 1!");
+
+        return DownloadEngine.shared(getExtension().getDownloadBaseUrl().getOrNull(), maxConnections);
+    }
 }
@@ -0,0 +1,356 @@
+package dev.turtywurty.testgradleplugin.util;
+
+import com.google.gson.JsonObject;
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.OperatingSystem;
+import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import dev.turtywurty.testgradleplugin.download.DownloadEngine;
+import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension.ImportStrategy;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * A store of files keyed by their SHA-1, shared by every Minecraft version. Assets and libraries are downloaded into
+ * it once, and the per version trees are made of hard links to it, so adding a version only fetches and stores the
+ * files that are new to it. Where hard links are not possible, e.g. across file systems, the files are copied.
+ * <p>
+ * Objects are only ever added once verified and never modified, so a file in a version tree that is a link to the
+ * store must not be written to either.
+ * <p>
+ * Each task gets its own instance, so the counters only cover what that task did. Which kinds of links the file
+ * system supports is shared by every instance for the same directory, and remembered for the life of the daemon.
+ */
+public final class ContentStore {
+    private static final Map<Path, Support> SUPPORT = new ConcurrentHashMap<>();
+
+    private final Path root;
+    private final Path objects;
+    private final Support support;
+    private final LongAdder linked = new LongAdder();
+    private final LongAdder linkedBytes = new LongAdder();
+    private final LongAdder copied = new LongAdder();
+    private final LongAdder copiedBytes = new LongAdder();
+    private final LongAdder added = new LongAdder();
+    private final LongAdder addedBytes = new LongAdder();
+
+    private ContentStore(Path root, Support support) {
+        this.root = root;
+        this.objects = root.resolve("objects");
+        this.support = support;
+    }
+
+    /**
+     * @param cacheDir the plugin cache directory
+     * @return the store in the given directory, with counters of its own for the calling task
+     */
+    public static ContentStore forDirectory(Path cacheDir) {
+        Path root = cacheDir.toAbsolutePath().normalize().resolve("store");
+        return new ContentStore(root, SUPPORT.computeIfAbsent(root, ignored -> new Support()));
+    }
+
+    /**
+     * @param sha1 the SHA-1 of the object
+     * @return where the object is, or would be, stored
+     */
+    public Path pathOf(String sha1) {
+        String hash = sha1.toLowerCase(Locale.ROOT);
+        return this.objects.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * @param sha1 the SHA-1 of the object
+     * @param size the expected size, or a negative number to skip the check
+     * @return whether the store holds the object
+     */
+    public boolean contains(String sha1, long size) {
+        Path path = pathOf(sha1);
+        try {
+            return Files.isRegularFile(path) && (size < 0 || Files.size(path) == size);
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * @param sha1   the SHA-1 of the object
+     * @param size   the expected size, or a negative number to skip the check
+     * @param verify whether to hash the stored object, a corrupted one is removed
+     * @return whether the store holds the object
+     */
+    public boolean contains(String sha1, long size, boolean verify) throws IOException {
+        if (!contains(sha1, size))
+            return false;
+
+        if (!verify || HashingFunction.SHA1.hash(pathOf(sha1)).equalsIgnoreCase(sha1))
+            return true;
+
+        System.out.println("Removing corrupted object " + sha1 + " from the content store!");
+        Files.delete(pathOf(sha1));
+        return false;
+    }
+
+    /**
+     * Downloads an object into the store, unless it is already there.
+     *
+     * @return the stored object
+     */
+    public Path download(DownloadEngine engine, String url, String sha1, long size) {
+        Path path = pathOf(sha1);
+        if (!contains(sha1, size)) {
+            engine.download(url, path, size, sha1);
+            this.added.increment();
+            this.addedBytes.add(Math.max(size, 0));
+        }
+
+        return path;
+    }
+
+    /**
+     * Adds a file whose SHA-1 the caller already verified to the store, unless it is already there.
+     *
+     * @param source   the file
+     * @param sha1     the SHA-1 of the file
+     * @param strategy how to get the file into the store, a hard link is only safe for files that are never modified
+     *                 in place, such as the content addressed files of the launcher. Falls back to a copy
+     * @return the stored object
+     */
+    public Path importFile(Path source, String sha1, ImportStrategy strategy) throws IOException {
+        Path path = pathOf(sha1);
+        if (Files.isRegularFile(path))
+            return path;
+
+        Files.createDirectories(path.getParent());
+        Path tempFile = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().threadId() + ".tmp");
+        try {
+            Files.deleteIfExists(tempFile);
+            boolean imported = switch (strategy) {
+                case HARDLINK -> tryLink(tempFile, source, true);
+                case REFLINK -> tryReflink(tempFile, source);
+                case COPY -> false;
+            };
+
+            if (!imported) {
+                Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        this.added.increment();
+        this.addedBytes.add(Files.size(path));
+        return path;
+    }
+
+    /**
+     * Makes the target a hard link to the stored object, or a copy of it if links are not supported. The target is
+     * replaced atomically, so it is never missing or half written.
+     *
+     * @param sha1   the SHA-1 of a stored object
+     * @param target the file in a version tree
+     */
+    public void materialize(String sha1, Path target) throws IOException {
+        Path object = pathOf(sha1);
+        if (Files.exists(target) && Files.isSameFile(object, target))
+            return;
+
+        Files.createDirectories(target.getParent());
+        Path tempFile = target.resolveSibling(target.getFileName() + ".link");
+        Files.deleteIfExists(tempFile);
+        long size = Files.size(object);
+        if (tryLink(tempFile, object, false)) {
+            this.linked.increment();
+            this.linkedBytes.add(size);
+        } else {
+            Files.copy(object, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            this.copied.increment();
+            this.copiedBytes.add(size);
+        }
+
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param link     the link to create
+     * @param existing the file to link to
+     * @param external whether the existing file is outside the cache, e.g. in the launcher directory, which may be on
+     *                 another file system than the store
+     * @return whether the link was created, once the file system turns out not to support links they are not tried
+     * again, other errors only make this one file be copied
+     */
+    private boolean tryLink(Path link, Path existing, boolean external) throws IOException {
+        if (external ? !this.support.externalLinks : !this.support.links)
+            return false;
+
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException exception) {
+            Files.deleteIfExists(link);
+            if (exception instanceof FileSystemException fileSystemException && !FileUtil.isLinkUnsupported(fileSystemException.getReason())) {
+                System.out.println("Failed to link " + link + " to " + existing + ", copying it instead: " + exception);
+                return false;
+            }
+
+            System.out.println("Hard links from " + existing.getParent() + " to " + link.getParent() + " are not supported, copying instead: " + exception);
+            if (external) {
+                this.support.externalLinks = false;
+            } else {
+                this.support.links = false;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Clones a file with {@code cp}, which shares the data blocks of both files on copy-on-write file systems such
+     * as btrfs, XFS and APFS. Java has no portable API for the underlying {@code FICLONE} and {@code clonefile} calls,
+     * so this starts a process per file.
+     *
+     * @return whether the clone was created, once the file system turns out not to support clones they are not
+     * tried again, other errors only make this one file be copied
+     */
+    private boolean tryReflink(Path target, Path source) throws IOException {
+        if (!this.support.reflinks)
+            return false;
+
+        List<String> command = switch (OperatingSystem.determineCurrentOperatingSystem()) {
+            case LINUX -> List.of("cp", "--reflink=always", source.toString(), target.toString());
+            case OSX -> List.of("cp", "-c", source.toString(), target.toString());
+            default -> null;
+        };
+
+        if (command != null) {
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                String output = new String(process.getInputStream().readAllBytes()).trim();
+                if (process.waitFor() == 0)
+                    return true;
+
+                Files.deleteIfExists(target);
+                if (!FileUtil.isLinkUnsupported(output)) {
+                    System.out.println("Failed to clone " + source + ", copying it instead: " + output);
+                    return false;
+                }
+
+                System.out.println("Reflinks from " + source.getParent() + " are not supported, copying instead: " + output);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while cloning " + source, exception);
+            }
+        } else {
+            System.out.println("Reflinks are not supported on this operating system, copying instead!");
+        }
+
+        this.support.reflinks = false;
+        Files.deleteIfExists(target);
+        return false;
+    }
+
+    /**
+     * @param sha1   the SHA-1 of an object
+     * @param target the file in a version tree
+     * @return whether the target is a link to the stored object
+     */
+    public boolean isMaterialized(String sha1, Path target) {
+        try {
+            return Files.exists(target) && Files.exists(pathOf(sha1)) && Files.isSameFile(pathOf(sha1), target);
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the counters of this task to {@code report.json} next to the store.
+     * <p>
+     * With {@code scan}, the whole store is walked for its totals as well. Every object linked into more than one
+     * version tree would otherwise have been stored once per tree, so each extra link counts as saved space. That
+     * reads the attributes of every stored object, so it is only done on request.
+     *
+     * @param scan whether to walk the store for its totals
+     * @return the report
+     */
+    public JsonObject writeReport(boolean scan) {
+        long objectCount = 0, storedBytes = 0, savedBytes = 0;
+        if (scan && Files.isDirectory(this.objects)) {
+            try (Stream<Path> stream = Files.walk(this.objects)) {
+                for (Path path : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                    long size = Files.size(path);
+                    objectCount++;
+                    storedBytes += size;
+                    savedBytes += size * Math.max(0, linkCount(path) - 2);
+                }
+            } catch (IOException exception) {
+                System.err.println("Failed to walk content store " + this.objects + ": " + exception);
+            }
+        }
+
+        var report = new JsonObject();
+        report.addProperty("timestamp", Instant.now().toString());
+        if (scan) {
+            report.addProperty("objects", objectCount);
+            report.addProperty("storedBytes", storedBytes);
+            report.addProperty("savedBytes", savedBytes);
+        }
+
+        report.addProperty("linkedThisTask", this.linked.sum());
+        report.addProperty("copiedThisTask", this.copied.sum());
+        report.addProperty("addedThisTask", this.added.sum());
+        report.addProperty("addedBytesThisTask", this.addedBytes.sum());
+
+        try {
+            Files.createDirectories(this.root);
+            Files.writeString(this.root.resolve("report.json"), TestGradlePlugin.GSON.toJson(report));
+        } catch (IOException exception) {
+            System.err.println("Failed to write content store report: " + exception);
+        }
+
+        if (scan) {
+            System.out.printf(Locale.ROOT, "Content store: %d objects, %.2f MB stored, %.2f MB saved by links%n",
+                    objectCount, storedBytes / 1_048_576.0, savedBytes / 1_048_576.0);
+        }
+
+        return report;
+    }
+
+    private static int linkCount(Path path) {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException exception) {
+            return 1;
+        }
+    }
+
+    /**
+     * What the file system of a store supports, found out by trying and shared by every task that uses the store.
+     */
+    private static final class Support {
+        private volatile boolean links = true;
+        private volatile boolean externalLinks = true;
+        private volatile boolean reflinks = true;
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d linked (%.2f MB), %d copied (%.2f MB), %d added to the store (%.2f MB)",
+                this.linked.sum(), this.linkedBytes.sum() / 1_048_576.0, this.copied.sum(), this.copiedBytes.sum() / 1_048_576.0,
+                this.added.sum(), this.addedBytes.sum() / 1_048_576.0);
+    }
+}
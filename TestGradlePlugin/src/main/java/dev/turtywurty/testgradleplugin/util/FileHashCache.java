@@ -0,0 +1,237 @@
+package dev.turtywurty.testgradleplugin.util;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the digests of files, keyed by their absolute path, size, modification time and, where the file system
+ * has one, file key (the inode on unix). As long as none of those change, looking up a digest is a single stat call
+ * instead of reading the whole file.
+ * <p>
+ * Files modified within the last couple of seconds are not cached when they are hashed from disk, since a later change
+ * within the same timestamp tick would go unnoticed.
+ * <p>
+ * Every save that writes the cache starts a new generation, and each entry remembers the generation it was last used
+ * in. Entries unused for {@link #MAX_IDLE_GENERATIONS} generations, e.g. of files that were deleted or renamed, are
+ * dropped when the cache is saved, without checking each file on disk.
+ * <p>
+ * Layout (big endian): int magic, int version, int generation, int count, then per entry:
+ * UTF key, long size, long modified (nanoseconds), UTF fileKey ("" for none), UTF digest, int generation last used.
+ */
+public final class FileHashCache {
+    private static final int MAGIC = 0x54484153; // THAS
+    private static final int VERSION = 2;
+    private static final int MAX_IDLE_GENERATIONS = 100;
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final Map<Path, FileHashCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private volatile int generation;
+    private volatile boolean dirty;
+
+    private FileHashCache(Path file, Map<String, Entry> entries, int generation) {
+        this.file = file;
+        this.entries = entries;
+        this.generation = generation;
+    }
+
+    /**
+     * @param cacheDir the plugin cache directory
+     * @return the hash cache stored in the given directory, shared by every task of the build
+     */
+    public static FileHashCache forDirectory(Path cacheDir) {
+        return INSTANCES.computeIfAbsent(cacheDir.toAbsolutePath().normalize().resolve("file-hashes.bin"), FileHashCache::load);
+    }
+
+    private static FileHashCache load(Path file) {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        int generation = 0;
+        if (Files.exists(file)) {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    generation = in.readInt();
+                    int count = in.readInt();
+                    for (int index = 0; index < count; index++) {
+                        String key = in.readUTF();
+                        long size = in.readLong();
+                        long modified = in.readLong();
+                        String fileKey = in.readUTF();
+                        String digest = in.readUTF();
+                        entries.put(key, new Entry(size, modified, fileKey.isEmpty() ? null : fileKey, digest, in.readInt()));
+                    }
+                }
+            } catch (IOException exception) {
+                System.err.println("Ignoring unreadable file hash cache " + file + ": " + exception);
+                entries.clear();
+                generation = 0;
+            }
+        }
+
+        return new FileHashCache(file, entries, generation);
+    }
+
+    /**
+     * Returns the digest of a file, from the cache if the file is unchanged since it was last hashed.
+     *
+     * @param path     the file to hash
+     * @param function the hashing function
+     * @return the hex digest
+     */
+    public String hash(Path path, HashingFunction function) {
+        return hash(path, function, false);
+    }
+
+    /**
+     * @param path     the file to hash
+     * @param function the hashing function
+     * @param force    whether to ignore the cached digest and read the file again
+     * @return the hex digest
+     */
+    public String hash(Path path, HashingFunction function, boolean force) {
+        String key = key(path, function);
+        BasicFileAttributes attributes = readAttributes(path);
+        if (!force) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.matches(attributes)) {
+                int generation = this.generation;
+                if (entry.used != generation) {
+                    this.entries.replace(key, entry, entry.usedIn(generation));
+                }
+
+                return entry.digest;
+            }
+        }
+
+        String digest = function.hash(path);
+        put(key, attributes, digest);
+        return digest;
+    }
+
+    /**
+     * @param path     the file to check
+     * @param function the hashing function
+     * @param expected the expected hex digest
+     * @param force    whether to ignore the cached digest and read the file again
+     * @return whether the file exists and has the expected digest
+     */
+    public boolean matches(Path path, HashingFunction function, String expected, boolean force) {
+        return Files.isRegularFile(path) && hash(path, function, force).equalsIgnoreCase(expected);
+    }
+
+    /**
+     * Records the digest of a file that was just written, e.g. by a download that hashed it on the way. Unlike a
+     * file that was hashed from disk, the caller wrote these exact bytes itself, so it is cached even though it is new.
+     *
+     * @param path     the file
+     * @param function the hashing function the digest was computed with
+     * @param digest   the hex digest
+     */
+    public void record(Path path, HashingFunction function, String digest) {
+        put(key(path, function), readAttributes(path), digest, true);
+    }
+
+    private void put(String key, BasicFileAttributes attributes, String digest) {
+        put(key, attributes, digest, false);
+    }
+
+    private void put(String key, BasicFileAttributes attributes, String digest, boolean trusted) {
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (!trusted && System.currentTimeMillis() * 1_000_000 - modified < RACY_WINDOW_NANOS) {
+            this.entries.remove(key);
+            return;
+        }
+
+        this.entries.put(key, new Entry(attributes.size(), modified, fileKey(attributes), digest, this.generation));
+        this.dirty = true;
+    }
+
+    /**
+     * Writes the cache back to disk if anything changed, leaving out the entries that have not been used for
+     * {@link #MAX_IDLE_GENERATIONS} generations. The file is written to a temporary sibling and then moved into place,
+     * so a concurrent reader never sees a half written cache.
+     */
+    public synchronized void save() {
+        if (!this.dirty)
+            return;
+
+        this.dirty = false;
+        int generation = this.generation;
+        this.entries.values().removeIf(entry -> generation - entry.used > MAX_IDLE_GENERATIONS);
+        this.generation = generation + 1;
+        Path tempFile = this.file.resolveSibling(this.file.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.createDirectories(this.file.getParent());
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+                Map<String, Entry> snapshot = Map.copyOf(this.entries);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(generation + 1);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().modified);
+                    out.writeUTF(entry.getValue().fileKey == null ? "" : entry.getValue().fileKey);
+                    out.writeUTF(entry.getValue().digest);
+                    out.writeInt(entry.getValue().used);
+                }
+            }
+
+            Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            this.dirty = true;
+            System.err.println("Failed to write file hash cache " + this.file + ": " + exception);
+        }
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    private static String key(Path path, HashingFunction function) {
+        return function.name() + ':' + path.toAbsolutePath().normalize();
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to read attributes of " + path + "!", exception);
+        }
+    }
+
+    private static @Nullable String fileKey(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? null : fileKey.toString();
+    }
+
+    /**
+     * @param used the generation the entry was last used in
+     */
+    private record Entry(long size, long modified, @Nullable String fileKey, String digest, int used) {
+        public Entry usedIn(int generation) {
+            return new Entry(this.size, this.modified, this.fileKey, this.digest, generation);
+        }
+
+        public boolean matches(BasicFileAttributes attributes) {
+            return this.size == attributes.size()
+                    && this.modified == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && Objects.equals(this.fileKey, FileHashCache.fileKey(attributes));
+        }
+    }
+}
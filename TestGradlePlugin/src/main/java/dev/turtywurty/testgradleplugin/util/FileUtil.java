@@ -1,13 +1,18 @@
 package dev.turtywurty.testgradleplugin.util;
 
 import org.gradle.api.Project;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Comparator;
+import java.util.Locale;
 import java.util.function.BiConsumer;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class FileUtil {
@@ -41,6 +46,35 @@ public class FileUtil {
         });
     }
 
+    /**
+     * Since 1.18 the server jar is a bundler with the actual server jar nested inside it. If that is the case, the
+     * nested jar is copied out to {@code target} (unless it is already up to date) and returned.
+     *
+     * @param serverJar the downloaded server jar
+     * @param version   the Minecraft version
+     * @param target    where to put the nested server jar
+     * @return the jar that contains the server classes
+     */
+    public static Path unbundleServerJar(Path serverJar, String version, Path target) {
+        try (var zipFile = new ZipFile(serverJar.toFile())) {
+            ZipEntry entry = zipFile.getEntry("META-INF/versions/%s/server-%s.jar".formatted(version, version));
+            if (entry == null)
+                return serverJar;
+
+            if (Files.exists(target) && Files.size(target) == entry.getSize()
+                    && Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(serverJar)) >= 0)
+                return target;
+
+            try (InputStream stream = zipFile.getInputStream(entry)) {
+                Files.copy(stream, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            return target;
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to unbundle server jar: " + serverJar, exception);
+        }
+    }
+
     public static void deleteDirectory(Path directory) {
         try (var paths = Files.walk(directory)) {
             paths.sorted(Comparator.reverseOrder())
@@ -69,6 +103,27 @@ public class FileUtil {
         }
     }
 
+    /**
+     * Tells an error that means the file system cannot link or clone files at all, such as a link across file systems
+     * or to a file system without links, apart from an error with one file, such as a file that has too many links.
+     * Java only reports the reason as text, so this matches the messages of Linux, macOS and Windows.
+     *
+     * @param reason the reason of a {@link java.nio.file.FileSystemException}, or the output of {@code cp}
+     * @return whether linking or cloning should not be tried again on this file system
+     */
+    public static boolean isLinkUnsupported(@Nullable String reason) {
+        if (reason == null)
+            return false;
+
+        String lower = reason.toLowerCase(Locale.ROOT);
+        return lower.contains("cross-device") // EXDEV
+                || lower.contains("operation not permitted") // EPERM, the file system has no hard links
+                || lower.contains("not supported") // EOPNOTSUPP
+                || lower.contains("invalid argument") // EINVAL, the file system cannot clone
+                || lower.contains("different disk drive") // ERROR_NOT_SAME_DEVICE
+                || lower.contains("incorrect function"); // ERROR_INVALID_FUNCTION, e.g. FAT
+    }
+
     /**
      * If the file consists of the bytes 0x09 (tab), 0x0A (line feed), 0x0C (form feed), 0x0D (carriage return), or 0x20 through 0x7E, then it's probably ASCII text.
      * <p>